@@ -6,6 +6,9 @@
  * Date:       3/18/2014
  *
  * This is a client that sends SPAQueries to a given server port and handles SPAResponses
+ * Given "-metrics" in place of a business name, it sends a SPAMetricsQuery
+ * instead and prints the server's figures, or reports that the server
+ * does not support them
  *******************/
 
 package SPA.app;
@@ -23,6 +26,8 @@ import java.util.Date;
 
 import SPA.protocol.SPAException;
 import SPA.protocol.SPAMessage;
+import SPA.protocol.SPAMetricsQuery;
+import SPA.protocol.SPAMetricsResponse;
 import SPA.protocol.SPAQuery;
 import SPA.protocol.SPAResponse;
 
@@ -44,6 +49,11 @@ public class SPAClient {
 	//number of bytes we give our buffer to receive responses.
 	//Slightly larger than the maximum size of a DatagramPacket
 	private final static int RESPONSELENGTH = 65600;
+	//Argument given in place of a business name to ask for the server's metrics
+	private final static String METRICSFLAG = "-metrics";
+	//Error codes with which a server that predates metrics may answer a metrics query
+	private final static int BADVERSION = 1;
+	private final static int BADLENGTH = 2;
 	
 	/**
 	 * Decodes a packet and determines whether it is a response intended
@@ -58,6 +68,25 @@ public class SPAClient {
 	 */
 	public static boolean processPacket(DatagramPacket receivePacket, byte[] msgID, 
 			InetAddress serverName) throws IOException, SPAException{
+		return processPacket(receivePacket, msgID, serverName, false);
+	}
+	
+	/**
+	 * Decodes a packet and determines whether it is a response intended
+	 * for this application. When awaiting metrics, an error response
+	 * refusing the query is taken whatever its ID, since a server that
+	 * predates metrics answers a packet it cannot parse with ID 0.
+	 * 
+	 * @param receivePacket packet received
+	 * @param msgID ID of our query
+	 * @param serverName server the query was sent to
+	 * @param metrics true if our query was a SPAMetricsQuery
+	 * @return true if the packet answers our query
+	 * @throws IOException if the packet came from elsewhere
+	 * @throws SPAException in event of error decoding the packet
+	 */
+	public static boolean processPacket(DatagramPacket receivePacket, byte[] msgID, 
+			InetAddress serverName, boolean metrics) throws IOException, SPAException{
 		boolean received = false;
 		int len = receivePacket.getLength();
 		byte[] msg = new byte[len];
@@ -69,12 +98,12 @@ public class SPAClient {
 		//Check ID
 		//decode packet.
 		SPAMessage m = SPAMessage.decode(msg);
-		if(!(m instanceof SPAResponse)){
+		if(!(m instanceof SPAResponse) && !(m instanceof SPAMetricsResponse)){
 			//if we receive a query or other type of message, we print
 			//an error message and disregard.
 			System.err.println("ERROR: Received Query instead of response");
 		}
-		else if(m.getMsgID() == msgID[0]){
+		else if(m.getMsgID() == msgID[0] || (metrics && rejectsMetrics(m))){
 			//If we receive a response whose ID matches
 			//our query, we stop awaiting a response and process this one.
 			//Otherwise we disregard.
@@ -92,11 +121,32 @@ public class SPAClient {
 	 * @throws UnsupportedEncodingException Error encoding
 	 */
 	public static void decodePacket(DatagramPacket receivePacket) throws SPAException, UnsupportedEncodingException{
+		decodePacket(receivePacket, false);
+	}
+	
+	/**
+	 * Decodes a given packet and either identifies it as an invalid request
+	 * or identifies it as a valid response and prints its contents.
+	 * When awaiting metrics, an error response refusing the query is
+	 * reported as the server not supporting them.
+	 * 
+	 * @param receivePacket packet received
+	 * @param metrics true if our query was a SPAMetricsQuery
+	 * @throws SPAException Error decoding
+	 * @throws UnsupportedEncodingException Error encoding
+	 */
+	public static void decodePacket(DatagramPacket receivePacket, boolean metrics) throws SPAException, UnsupportedEncodingException{
 		int len = receivePacket.getLength();
 		byte[] msg = new byte[len];
 		System.arraycopy(receivePacket.getData(), 0, msg, 0, len);
 		SPAMessage m = SPAMessage.decode(msg);
-		if(!(m instanceof SPAResponse)){
+		if(metrics && rejectsMetrics(m)){
+			System.err.println("ERROR: Server does not support metrics queries");
+		}
+		else if(m instanceof SPAMetricsResponse){
+			printMetrics((SPAMetricsResponse) m);
+		}
+		else if(!(m instanceof SPAResponse)){
 			System.err.println("ERROR: Received Response instead of query");
 		}
 		else{
@@ -127,6 +177,51 @@ public class SPAClient {
 		}
 	}
 	
+	/**
+	 * Determines whether a message is the error response with which a server
+	 * that predates metrics answers a metrics query: bad version, or, since
+	 * such a server reads the query as a SPAQuery too short to hold a
+	 * business name, bad length.
+	 * 
+	 * @param m message received
+	 * @return true if m refuses a metrics query
+	 */
+	private static boolean rejectsMetrics(SPAMessage m){
+		if(!(m instanceof SPAResponse)){
+			return false;
+		}
+		int error = m.getVerQRErr() & 0x07;
+		return error == BADVERSION || error == BADLENGTH;
+	}
+	
+	/**
+	 * Prints the contents of a metrics response
+	 * 
+	 * @param response metrics response received
+	 * @throws UnsupportedEncodingException Error encoding
+	 */
+	public static void printMetrics(SPAMetricsResponse response) throws UnsupportedEncodingException{
+		byte vqr = response.getVerQRErr();
+		long time = (response.getTimeStamp()&0xFFFFFFFFL) * 1000L;
+		int numFunctions = response.getFunctionCount() & 0xFF;
+		byte[][] names = response.getFunctionNames();
+		int[] p50 = response.getP50s();
+		int[] p99 = response.getP99s();
+		int[] p999 = response.getP999s();
+		System.out.println("Version: " + ((vqr >>> 4) & 0x0F));
+		System.out.println("Error Code: " + (vqr & 0x07));
+		System.out.println("ID: " + (response.getMsgID() & 0xFF));
+		System.out.println("Timestamp: " + new Date(time));
+		System.out.println("Open Connections: " + response.getOpenConnections());
+		System.out.println(String.format("Requests/sec: %.2f", response.getRequestRate() / 100.0));
+		System.out.println("Selector Loop Lag: " + response.getLoopLag() + "us");
+		System.out.println("Log Queue Depth: " + response.getLogQueueDepth());
+		for(int i = 0; i < numFunctions; i++){
+			System.out.println("Function " + new String(names[i], ENCODING) + ": p50=" + p50[i]
+					+ "us p99=" + p99[i] + "us p99.9=" + p999[i] + "us");
+		}
+	}
+	
 	public static byte[] encodeQuery(SPAQuery query, byte[] msgID, byte bizLength, byte[] bizName) throws SPAException{
 		query.setVerQRErr((byte)0x20); //version: 0010, QR: 0, Err: 000
 		query.setMsgID(msgID[0]);
@@ -136,12 +231,24 @@ public class SPAClient {
 	}
 	
 	/**
-	 * @param args Server IP/Name, port, business name
+	 * @param msgID ID of the query
+	 * @return encoded metrics query
+	 * @throws SPAException in event of encoding error
+	 */
+	public static byte[] encodeMetricsQuery(byte[] msgID) throws SPAException{
+		SPAMetricsQuery query = new SPAMetricsQuery(); //version: 0011, QR: 0, Err: 000
+		query.setMsgID(msgID[0]);
+		return query.encode();
+	}
+	
+	/**
+	 * @param args Server IP/Name, port, business name or "-metrics"
 	 */
 	public static void main(String [] args){
 		//Verify, retrieve arguments
 		if(args.length != 3){
-			System.err.println("Unable to start: expects Server Identity, Server Port, Cookie File");
+			System.err.println("Unable to start: expects Server Identity, Server Port, Business Name or "
+					+ METRICSFLAG);
 			System.exit(1);
 		}
 		//name of the server we wish to connect to
@@ -179,8 +286,10 @@ public class SPAClient {
 			System.err.println("Unsupported Encoding Error: " + e1);
 			System.exit(1);
 		}
+		boolean metrics = METRICSFLAG.equals(businessName); //true to ask for the server's metrics
 		try {
-			byte[] encQuery = encodeQuery(query, msgID, bizLength, bizName);
+			byte[] encQuery = metrics ? encodeMetricsQuery(msgID)
+					: encodeQuery(query, msgID, bizLength, bizName);
 			DatagramPacket sendPacket = new DatagramPacket(encQuery, encQuery.length, serverName, servPort);
 			//Create DatagramPacket to receive response
 			DatagramPacket receivePacket = new DatagramPacket(new byte[RESPONSELENGTH],RESPONSELENGTH);
@@ -195,14 +304,14 @@ public class SPAClient {
 					socket.send(sendPacket);
 					//Receive packet
 					socket.receive(receivePacket);
-					received = processPacket(receivePacket, msgID, serverName);
+					received = processPacket(receivePacket, msgID, serverName, metrics);
 				}catch(InterruptedIOException e){ //We timed out
 					tries++;
 					System.out.println("Timed out, " + (MAXTRIES-tries) + " retransmissions remain...");
 				}
 			}while((!received)&& (tries < MAXTRIES));
 			//decode packet.
-			decodePacket(receivePacket);
+			decodePacket(receivePacket, metrics);
 			
 		} catch (SPAException e) {
 			System.err.println("SPA error: " + e.getMessage());
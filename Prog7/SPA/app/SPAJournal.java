@@ -0,0 +1,26 @@
+package SPA.app;
+
+import java.net.InetAddress;
+
+/**
+ * Record of every SPA message a SPAServer answers, such as the SpRT
+ * server's binary journal. Kept as an interface so SPA does not
+ * depend on the server it runs alongside.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public interface SPAJournal {
+	/**
+	 * Records a message answered. Must not block, and must be safe to call from any thread.
+	 *
+	 * @param source address of the client
+	 * @param port port of the client
+	 * @param status error code of the reply, 0xFF if none could be sent
+	 * @param metricsQuery true if the message was a metrics query
+	 * @param latencyNanos time taken to answer, in nanoseconds
+	 * @param bytesIn length of the message
+	 * @param bytesOut length of the reply
+	 */
+	void recordMessage(InetAddress source, int port, int status, boolean metricsQuery,
+			long latencyNanos, int bytesIn, int bytesOut);
+}
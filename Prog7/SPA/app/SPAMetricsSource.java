@@ -0,0 +1,43 @@
+package SPA.app;
+
+/**
+ * Source of the operational figures a SPAServer reports in answer to a
+ * metrics query, such as the SpRT server's metrics registry. Kept as an
+ * interface so SPA does not depend on the server it runs alongside.
+ * Figures other than gauges cover the current reporting interval so far.
+ * Implementations must be safe to call from any thread.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public interface SPAMetricsSource {
+	/**
+	 * @return number of client connections open
+	 */
+	long getOpenConnections();
+
+	/**
+	 * @return requests handled per second
+	 */
+	double getRequestRate();
+
+	/**
+	 * @return longest selector loop lag in nanoseconds, 0 if there is no selector loop
+	 */
+	long getLoopLag();
+
+	/**
+	 * @return number of log records waiting to be written
+	 */
+	int getLogQueueDepth();
+
+	/**
+	 * @return names of the functions timed, in the order of getFunctionPercentiles
+	 */
+	String[] getFunctionNames();
+
+	/**
+	 * @param percentiles percentiles wanted, 0 to 100
+	 * @return for each function, its latency at each percentile in nanoseconds
+	 */
+	long[][] getFunctionPercentiles(double... percentiles);
+}
@@ -6,100 +6,211 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.Date;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import SPA.protocol.SPAException;
 import SPA.protocol.SPAMessage;
+import SPA.protocol.SPAMessageView;
+import SPA.protocol.SPAMetricsQuery;
+import SPA.protocol.SPAMetricsResponse;
 import SPA.protocol.SPAQuery;
 import SPA.protocol.SPAResponse;
 
 /**
  * Class that allows a user to receive, process, and send
  * SPAMessages from a given server port.
+ * Function invocations are counted with striped adders and the time of the
+ * last one kept in an atomic, so recording never blocks a SpRT thread.
+ * Answers to valid queries are copied from a pre-encoded snapshot of the counts,
+ * rebuilt only after they change and at most every SNAPSHOTMILLIS.
+ * Several receiver threads may service the socket at once; each has its own
+ * packet and send buffer, and replies go to the address passed along with
+ * each message. Alternatively, a server built without a socket can be driven
+ * by a selector through handleDatagrams.
+ * Valid queries are read through a SPAMessageView and answered by copying the
+ * snapshot into a reused send buffer, so handling one allocates nothing beyond
+ * its log entry.
+ * Metrics queries are answered from a SPAMetricsSource, if one was set,
+ * and otherwise with a bad version error as a server without them would.
  * @author Corey Royse
  * Assignment: Program 5
  */
 public class SPAServer {
 	private int servPort; //Server port assigned to us by the larger SpRT Server
-	private final static int MSGLENGTH = 65600; //Maximum size of a SPAMessage
+	public final static int MSGLENGTH = 65600; //Maximum size of a SPAMessage
 	private DatagramSocket sock; //socket used to communicate with clients
-	private DatagramPacket pkt; //packet used to store incoming requests.
+	private int numReceivers; //Number of threads receiving on our socket
 	private final static String ENCODING = "US-ASCII"; //Encoding standard to be used
-	private ConcurrentHashMap<String, Short> appCounts;
+	private ConcurrentHashMap<String, LongAdder> appCounts; //Invocations of each function
+	private final static long MAXCOUNT = 0xFFFF; //Largest count the protocol's 16 bits can carry
+	private final static int MAXAPPS = 0xFF; //Most applications a response can carry
 	private Logger log; //Logger assigned for us to use on construction
-	private static Date date;
+	private AtomicLong lastInvocation; //Time (milliseconds) of the last function invocation, 0 if none
+	private final static long SNAPSHOTMILLIS = 100; //Least time between rebuilds of our snapshot
+	private volatile byte[] snapshot; //Encoded response to a valid query, msgID left 0; null until first needed
+	private volatile long snapshotTime; //Time (milliseconds) our snapshot was built
+	private volatile boolean countsChanged; //true if an invocation was recorded since our snapshot was built
+	private final SPAMessageView channelView = new SPAMessageView(); //View used by handleDatagrams
+	private volatile SPAJournal journal; //Journal recording every message answered, or null
+	private volatile SPAMetricsSource metrics; //Source answering metrics queries, or null
+	//Log line for queries received, only formatted if logged, and then by the log's writer
+	private final static String QUERYLOG = "Received SPAQuery: source = {0}, business = {1}"
+			+ System.getProperty("line.separator");
+	//Log line for metrics queries received
+	private final static String METRICSLOG = "Received SPAMetricsQuery: source = {0}"
+			+ System.getProperty("line.separator");
 	
 	/**
 	 * Default constructor
 	 */
 	public SPAServer(){
 		servPort = 0;
-		date = new Date(0L);
+		appCounts = new ConcurrentHashMap<>();
+		lastInvocation = new AtomicLong();
 	}
 	
 	/**
-	 * Initializes a socket on the given port
-	 * and readies a datagram packet
+	 * Initializes a server without a socket of its own, whose datagrams are
+	 * passed in through handleDatagrams
+	 * 
+	 * @param l	   logger to record connections
+	 */
+	public SPAServer(Logger l){
+		servPort = 0;
+		appCounts = new ConcurrentHashMap<>();
+		log = l;
+		lastInvocation = new AtomicLong();
+	}
+	
+	/**
+	 * Initializes a socket on the given port, serviced by one receiver per core
 	 * 
 	 * @param port port to be mounted on
 	 * @param l	   logger to record connections
 	 * @throws SocketException in the event of trouble initializing the socket
 	 */
 	public SPAServer(int port, Logger l) throws SocketException{
+		this(port, l, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Initializes a socket on the given port
+	 * 
+	 * @param port port to be mounted on
+	 * @param l	   logger to record connections
+	 * @param numReceivers number of threads receiving on the socket
+	 * @throws SocketException in the event of trouble initializing the socket
+	 */
+	public SPAServer(int port, Logger l, int numReceivers) throws SocketException{
 		servPort = port;
 		sock = new DatagramSocket(servPort);
-		pkt = new DatagramPacket(new byte[MSGLENGTH], MSGLENGTH);
+		this.numReceivers = Math.max(1, numReceivers);
 		appCounts = new ConcurrentHashMap<>();
 		log = l;
-		date = new Date(0L);
+		lastInvocation = new AtomicLong();
+	}
+	
+	/**
+	 * @param journal journal to record every message answered in, or null for none
+	 */
+	public void setJournal(SPAJournal journal){
+		this.journal = journal;
+	}
+	
+	/**
+	 * @param metrics source to answer metrics queries from, or null to reject them
+	 */
+	public void setMetrics(SPAMetricsSource metrics){
+		this.metrics = metrics;
 	}
 	
 	/**
 	 * Updates our mapping of app names and their use counts by incrementing
-	 * the usage of the specified app.
+	 * the usage of the specified app. Safe to call from any thread without locking;
+	 * counts saturate at the protocol's 16-bit limit when reported.
 	 * @param function name of the function to be incremented
 	 */
-	public synchronized void recordInvocation(String function){
-		//If our map doesn't already contain function, we atomically insert
-		if(appCounts.putIfAbsent(function, (short)1) != null){
-			//If it already contains function, we have to check that incrementing
-			//will not cause overflow, then increment if this is true.
-			short count = appCounts.get(function);
-			if((short)(count+1) != 0){
-				appCounts.replace(function, (short)(count+1));
+	public void recordInvocation(String function){
+		LongAdder count = appCounts.get(function);
+		if(count == null){
+			//First invocation - only now do we pay for an atomic insert
+			LongAdder added = new LongAdder();
+			count = appCounts.putIfAbsent(function, added);
+			if(count == null){
+				count = added;
 			}
 		}
+		count.increment();
 		//update timestamp
-		date.setTime(new Date().getTime());
+		lastInvocation.set(System.currentTimeMillis());
+		//A plain volatile write - cheap, and only done if the flag is clear.
+		if(!countsChanged){
+			countsChanged = true;
+		}
 	}
 	
 	/**
 	 * Receives, processes, and responds to SPAMessages sent by other applications.
-	 * 
-	 * @param d date of last app invocation
+	 * Starts our extra receiver threads, then becomes a receiver itself.
 	 */
 	public void takeClients(){
+		for(int i = 1; i < numReceivers; i++){
+			Thread receiver = new Thread("SPAReceiver-" + i){
+				public void run(){
+					receive();
+				}
+			};
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+		receive();
+	}
+	
+	/**
+	 * Receiver loop, run by each receiving thread with its own buffers.
+	 */
+	private void receive(){
+		//packet used to store incoming requests.
+		DatagramPacket pkt = new DatagramPacket(new byte[MSGLENGTH], MSGLENGTH);
+		ByteBuffer in = ByteBuffer.wrap(pkt.getData());
+		//Buffer in which we build each reply, and the packet that sends it
+		ByteBuffer out = ByteBuffer.allocate(MSGLENGTH);
+		DatagramPacket reply = new DatagramPacket(out.array(), MSGLENGTH);
+		SPAMessageView view = new SPAMessageView();
 		while(true){ //run forever, servicing clients as they come.
+			boolean addressed = false; //true once reply is addressed to the sender
 			try {
 				//receive packet
 				sock.receive(pkt);
-				//Parse incoming message, log query, construct response
-				SPAResponse resp = buildResponse(date);
-				//send
-				sendResponse(resp);
+				reply.setAddress(pkt.getAddress());
+				reply.setPort(pkt.getPort());
+				addressed = true;
+				//Parse it and build our reply
+				in.clear();
+				in.limit(pkt.getLength());
+				int len = respond(in, pkt.getAddress(), pkt.getPort(), out, view);
+				if(len > 0){
+					//send
+					reply.setLength(len);
+					sock.send(reply);
+				}
 			} catch (IOException e) {
 				//Respond to System Error
-				systemError();
-			} catch (SPAException e) {
-				//Respond to error parsing packet
-				parsingError();
+				if(addressed){
+					systemError(reply, out);
+				}
 			}
 			
 			//reset length to maintain buffer
@@ -109,19 +220,92 @@ public class SPAServer {
 	}
 	
 	/**
-	 * Constructs and sends a generic response when unable to parse a received
-	 * packet properly
+	 * Receives and responds to every datagram waiting on a non-blocking channel,
+	 * for servers driven by a selector rather than our own receiver threads.
+	 * Returns once the channel has no more datagrams queued.
+	 * Must only be called by one thread at a time.
+	 * 
+	 * @param chan channel that is ready to read
+	 * @param in buffer to receive into, at least MSGLENGTH long
+	 * @param out buffer to build replies in, at least MSGLENGTH long
+	 * @throws IOException if the channel fails
 	 */
-	private void parsingError() {
-		//ErrCode = 2, msgID = 0, time = 0, AppCount = 0
-		byte vqe = 0x2A; //0010 1010
-		SPAResponse resp;
+	public void handleDatagrams(DatagramChannel chan, ByteBuffer in, ByteBuffer out) throws IOException{
+		SocketAddress client; //Address of the sender, to reply to
+		in.clear();
+		while((client = chan.receive(in)) != null){
+			InetSocketAddress source = (InetSocketAddress) client;
+			in.flip();
+			if(respond(in, source.getAddress(), source.getPort(), out, channelView) > 0){
+				//A full send buffer drops the reply, as the network may anyway
+				chan.send(out, client);
+			}
+			in.clear();
+		}
+	}
+	
+	/**
+	 * Parses a received message and builds our reply to it.
+	 * 
+	 * @param msg buffer holding the message between its position and limit
+	 * @param source address the message came from
+	 * @param port port the message came from
+	 * @param out buffer in which to build the reply, left flipped for sending
+	 * @param view the calling thread's view, used to read valid queries in place
+	 * @return length of the reply, 0 if there is none to send
+	 */
+	private int respond(ByteBuffer msg, InetAddress source, int port, ByteBuffer out, SPAMessageView view){
+		SPAJournal journal = this.journal;
+		long start = (journal != null) ? System.nanoTime() : 0;
+		boolean metricsQuery = false; //true if msg is a metrics query, for the journal
+		out.clear();
+		try {
+			view.wrap(msg);
+			if(isValidQuery(view)){
+				//Log query, then answer it straight from our snapshot
+				logQuery(view, source);
+				copySnapshot(view.getMsgID(), out);
+			}
+			else if(view.isMetrics() && !view.isResponse()){
+				metricsQuery = true;
+				logMetricsQuery(source);
+				buildMetricsResponse((SPAMetricsQuery) SPAMessage.decode(msg)).encodeTo(out);
+			}
+			else{
+				//Construct a response to anything else
+				buildResponse(SPAMessage.decode(msg)).encodeTo(out);
+			}
+		} catch (IOException e) {
+			//Respond to System Error
+			errorReply((byte) 0x2C, out); // 0010 1100
+		} catch (SPAException e) {
+			//Respond to error parsing packet
+			errorReply((byte) 0x2A, out); //0010 1010
+		}
+		out.flip();
+		if(journal != null){
+			int status = out.hasRemaining() ? out.get(0) & 0x07 : 0xFF; //0xFF if we could not reply
+			journal.recordMessage(source, port, status, metricsQuery,
+					System.nanoTime() - start, msg.remaining(), out.remaining());
+		}
+		return out.remaining();
+	}
+	
+	/**
+	 * Builds a generic response to a message we could not handle,
+	 * ErrCode from the given vqe, msgID = 0, time = 0, AppCount = 0
+	 * 
+	 * @param vqe version, QR and error code of the response
+	 * @param out buffer in which to build the reply; left empty if it could not be built
+	 */
+	private void errorReply(byte vqe, ByteBuffer out){
+		out.clear();
 		try {
-			resp = generateErrorMsg(vqe);
-			sendResponse(resp);
-		} catch (IOException | SPAException e1) {
+			generateErrorMsg(vqe).encodeTo(out);
+		} catch (SPAException e1) {
 			//This shouldn't go wrong, but if it does we log the error and stop
 			//so that the server can continue to take new clients.
+			out.clear();
 			String logMsg ="ERROR: Exception thrown handling System error: " + e1.getMessage();
 			log.log(Level.WARNING, logMsg + System.getProperty("line.separator"));
 		}
@@ -129,66 +313,134 @@ public class SPAServer {
 
 	/**
 	 * Constructs and sends a generic response when a system error is encountered.
+	 * 
+	 * @param reply packet addressed to the client, sending out's array
+	 * @param out buffer in which to build the reply
 	 */
-	private void systemError(){
+	private void systemError(DatagramPacket reply, ByteBuffer out){
 		//ErrCode = 4, msgID = 0, timestamp = 0, AppCount = 0
-		byte vqe = 0x2C; // 0010 1100
-		SPAResponse resp;
+		errorReply((byte) 0x2C, out); // 0010 1100
 		try {
-			resp = generateErrorMsg(vqe);
-			sendResponse(resp);
-		} catch (IOException | SPAException e1) {
-			//This shouldn't go wrong, but if it does we log the error and stop
-			//so that the server can continue to take new clients.
+			if(out.position() > 0){
+				reply.setLength(out.position());
+				sock.send(reply);
+			}
+		} catch (IOException e1) {
 			String logMsg ="ERROR: Exception thrown handling System error: " + e1.getMessage();
 			log.log(Level.WARNING, logMsg + System.getProperty("line.separator"));
 		}
-		
 	}
 	
 	/**
 	 * Generates a SPAResponse with the given version and error message
 	 * called in response to an error
 	 * @param vqe
-	 * @throws IOException 
 	 * @throws SPAException 
 	 */
-	private SPAResponse generateErrorMsg(byte vqe) throws IOException, SPAException{
+	private SPAResponse generateErrorMsg(byte vqe) throws SPAException{
+		SPAResponse resp = new SPAResponse(); //timestamp = 0, appCount = 0
+		resp.setVerQRErr(vqe);
+		resp.setMsgID((byte) 0);
+		return resp;
+	}
+
+	/**
+	 * @param m view of a received message
+	 * @return true if m is a query with version 2 and error code 0
+	 */
+	private static boolean isValidQuery(SPAMessageView m){
+		byte vqe = m.getVerQRErr();
+		return !m.isResponse() && ((vqe & 0xF0) == 0x20) && ((vqe & 0x0F) == 0x00);
+	}
+	
+	/**
+	 * Returns the encoded response to a valid query, rebuilding it if
+	 * invocations have been recorded since it was built and it is
+	 * at least SNAPSHOTMILLIS old.
+	 * 
+	 * @return encoded response with msgID 0; must not be modified
+	 * @throws IOException in the event of a system error
+	 */
+	private byte[] countsSnapshot() throws IOException{
+		byte[] snap = snapshot;
+		long now = System.currentTimeMillis();
+		if(snap == null || (countsChanged && now - snapshotTime >= SNAPSHOTMILLIS)){
+			//Clear the flag before reading the counts, so an invocation
+			//recorded while we build marks the new snapshot stale.
+			countsChanged = false;
+			snap = encodeCounts();
+			snapshotTime = now;
+			snapshot = snap;
+		}
+		return snap;
+	}
+	
+	/**
+	 * Encodes a response to a valid query holding the current timestamp,
+	 * number of applications and their entries.
+	 * 
+	 * @return encoded response with msgID 0
+	 * @throws IOException in the event of a system error
+	 */
+	private byte[] encodeCounts() throws IOException{
+		//Snapshot the timestamp, then every count, so the sizes below agree
+		//even if functions are first invoked while we build the response.
+		int timestamp = (int)(lastInvocation.get()/1000L);
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<Short> appUses = new ArrayList<>();
+		for(Map.Entry<String, LongAdder> entry : appCounts.entrySet()){
+			if(names.size() == MAXAPPS){
+				break;
+			}
+			names.add(entry.getKey());
+			appUses.add((short)Math.min(entry.getValue().sum(), MAXCOUNT));
+		}
+		int numApps = names.size();
+		
 		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
 		DataOutputStream out = new DataOutputStream(bytes);
-		out.writeByte(vqe);
-		out.writeByte(0); //msgID = 0
-		out.writeInt(0);  //timestamp = 0
-		out.writeByte(0); //appCount = 0
+		out.writeByte(0x28); //0010 1000
+		out.writeByte(0); //msgID patched in per query
+		out.writeInt(timestamp);
+		out.writeByte(numApps);
+		for(int i = 0; i < numApps; i++){
+			byte[] appName = names.get(i).getBytes(ENCODING);
+			out.writeShort(appUses.get(i));
+			out.writeByte(appName.length);
+			out.write(appName);
+		}
 		out.flush();
-		out.close();
-		byte[] rBytes = bytes.toByteArray();
-		bytes.close();
-		SPAResponse resp = (SPAResponse) SPAMessage.decode(rBytes);
-		return resp;
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Answers a valid query by copying our snapshot into a send buffer
+	 * and patching in the query's msgID.
+	 * 
+	 * @param msgID ID of the query being answered
+	 * @param out the calling receiver's send buffer, positioned at its start
+	 * @throws IOException in the event of a system error
+	 */
+	private void copySnapshot(byte msgID, ByteBuffer out) throws IOException{
+		out.put(countsSnapshot());
+		out.put(1, msgID);
 	}
 
 	/**
-	 * Parse a given packet for a SPAMessage, then parse that message
-	 * in order to build an appropriate response
+	 * Parse a given SPAMessage in order to build an appropriate response
 	 * 
-	 * @param d 
+	 * @param m message received
 	 * @return
 	 * @throws SPAException in the event of a parsing error
 	 * @throws IOException  in the event of a system error
 	 */
-	public SPAResponse buildResponse(Date d) throws SPAException, IOException{
-		
-		int len = pkt.getLength();
-		byte[] msg = new byte[len];
-		System.arraycopy(pkt.getData(), 0, msg, 0, len);
-		SPAMessage m = SPAMessage.decode(msg);
+	public SPAResponse buildResponse(SPAMessage m) throws SPAException, IOException{
 		byte vqe = 0;
 		byte msgID = 0;
 		SPAResponse resp = new SPAResponse();
 		if(m instanceof SPAQuery){
 			SPAQuery q = (SPAQuery) m;
-			resp = parseQuery(q, d);
+			resp = parseQuery(q);
 		}
 		else{
 			//First we verify proper version and error code = 0
@@ -201,17 +453,8 @@ public class SPAServer {
 				//ErrCode = 3, msgID = (receivedID), Timestamp = 0, numApps = 0
 				vqe = 0x2B; //0010 1011
 				msgID = m.getMsgID();
-				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-				DataOutputStream out = new DataOutputStream(bytes);
-				out.writeByte(vqe);
-				out.writeByte(msgID);
-				out.writeInt(0); //timestamp = 0
-				out.writeByte(0); //numapps = 0
-				out.flush();
-				out.close();
-				byte[] rBytes = bytes.toByteArray();
-				bytes.close();
-				resp = (SPAResponse) SPAMessage.decode(rBytes);
+				resp = generateErrorMsg(vqe);
+				resp.setMsgID(msgID);
 			}
 		}
 		
@@ -222,70 +465,70 @@ public class SPAServer {
 	
 	/**
 	 * Validates that a query has a valid Version and error code,
-	 * builds an appropriate response
+	 * builds an appropriate response from a snapshot of our counts
 	 * 
 	 * @param q Query to be parsed
 	 * @return appropriate SPAResponse based on our query
 	 * @throws IOException  in the event of a system error
 	 * @throws SPAException in the event of a parsing error
 	 */
-	public SPAResponse parseQuery(SPAQuery q, Date d) throws IOException, SPAException{
+	public SPAResponse parseQuery(SPAQuery q) throws IOException, SPAException{
 		SPAResponse resp = new SPAResponse();
 		//First we verify proper version and error code = 0
 		byte vqe = 0;
 		vqe = q.getVerQRErr();
 		if(((vqe & 0xF0) != 0x20) || ((vqe & 0x0F) != 0x00)){
-			badVersionOrError(vqe);
+			resp = badVersionOrError(vqe);
 		}
 		else{
-			//We need to log query source addresses and business names
-			logQuery(q);
 			//We send a response to the given ID, Error Code 0, current timestamp,
 			//and the current number of applications and their entries.
-			vqe = 0x28; //0010 1000
-			byte msgID = 0;
-			msgID = q.getMsgID();
-			byte numApps = 0;
-			numApps = (byte)appCounts.size();
-			short[] appUses = new short[numApps];
-			String[] names = new String[numApps];
-			byte[][] appNames = new byte[numApps][];
-			byte[] nameLengths = new byte[numApps];
-			int app = 0;
-			AtomicLong time = new AtomicLong();
-			time.set(d.getTime()/1000L);
-			int timestamp = (int)time.get();
-			Iterator<Map.Entry<String, Short>> it = appCounts.entrySet().iterator();
-			while(it.hasNext()){
-				Map.Entry<String, Short> entry = it.next();
-				names[app] = entry.getKey();
-				nameLengths[app] = (byte)names[app].length();
-				appUses[app] = entry.getValue();
-				appNames[app] = names[app].getBytes(ENCODING);
-				app++;
-			}
-			
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-			DataOutputStream out = new DataOutputStream(bytes);
-			out.writeByte(vqe);
-			out.writeByte(msgID);
-			out.writeInt(timestamp);
-			out.writeByte(numApps);
-			for(int i = 0; i < (numApps&0xFF); i++){
-				out.writeShort(appUses[i]);
-				out.writeByte(nameLengths[i]);
-				for(int j = 0; j < (nameLengths[i]&0xFF); j++){
-					out.writeByte(appNames[i][j]);
-				}
-			}
-			out.flush();
-			byte[] rBytes = bytes.toByteArray();
-			resp = (SPAResponse) SPAMessage.decode(rBytes);
+			resp = (SPAResponse) SPAMessage.decode(ByteBuffer.wrap(countsSnapshot()));
+			resp.setMsgID(q.getMsgID());
 		}
 		
 		return resp;
 	}
 	
+	/**
+	 * Builds the answer to a metrics query: our source's current figures,
+	 * including each function's latency percentiles for the interval so far.
+	 * 
+	 * @param q metrics query received
+	 * @return SPAMetricsResponse to q, or a bad version error if q has an
+	 * error code other than 0 or we have no source
+	 * @throws IOException  in the event of a system error
+	 * @throws SPAException in the event of an encoding error
+	 */
+	public SPAMessage buildMetricsResponse(SPAMetricsQuery q) throws IOException, SPAException{
+		SPAMetricsSource metrics = this.metrics;
+		if(metrics == null || (q.getVerQRErr() & 0x0F) != 0x00){
+			return badVersionOrError(q.getVerQRErr());
+		}
+		SPAMetricsResponse resp = new SPAMetricsResponse();
+		resp.setMsgID(q.getMsgID());
+		resp.setTimeStamp((int)(System.currentTimeMillis()/1000L));
+		resp.setOpenConnections((int) Math.min(metrics.getOpenConnections(), Integer.MAX_VALUE));
+		resp.setLoopLag(micros(metrics.getLoopLag()));
+		resp.setLogQueueDepth(metrics.getLogQueueDepth());
+		resp.setRequestRate((int) Math.min(Math.round(metrics.getRequestRate() * 100), Integer.MAX_VALUE));
+		String[] names = metrics.getFunctionNames();
+		long[][] latencies = metrics.getFunctionPercentiles(50, 99, 99.9);
+		for(int i = 0; i < names.length; i++){
+			resp.addFunction(names[i].getBytes(ENCODING), micros(latencies[i][0]),
+					micros(latencies[i][1]), micros(latencies[i][2]));
+		}
+		return resp;
+	}
+	
+	/**
+	 * @param nanos a time in nanoseconds
+	 * @return the time in microseconds, saturating at the largest int
+	 */
+	private static int micros(long nanos){
+		return (int) Math.min(nanos / 1000, Integer.MAX_VALUE);
+	}
+	
 	/**
 	 * Constructs a generic response to send in response to any received
 	 * SPAMessage with a version other than 2 (0010) or an error code
@@ -307,16 +550,38 @@ public class SPAServer {
 	
 	/**
 	 * Makes a log of a received query's address and business name 
-	 * @param pkt pkt in which query was received
 	 * @param q query received
+	 * @param source address the query was received from
 	 * @throws UnsupportedEncodingException 
 	 */
-	public void logQuery(SPAQuery q) throws UnsupportedEncodingException{
-		byte[] bizName = q.getBusinessName();
-		String name = new String(bizName,"US-ASCII");
-		String logMsg = "Received SPAQuery: source = " + pkt.getAddress() + 
-				", business = " + name;
-		log.log(Level.INFO, logMsg + System.getProperty("line.separator"));
+	public void logQuery(SPAQuery q, InetAddress source) throws UnsupportedEncodingException{
+		if(log.isLoggable(Level.INFO)){
+			String name = new String(q.getBusinessName(), ENCODING);
+			log.log(Level.INFO, QUERYLOG, new Object[]{source, name});
+		}
+	}
+	
+	/**
+	 * Makes a log of a received query's address and business name,
+	 * read in place from the received packet
+	 * @param q view of the query received
+	 * @param source address the query was received from
+	 */
+	public void logQuery(SPAMessageView q, InetAddress source){
+		if(log.isLoggable(Level.INFO)){
+			//The view's buffer is reused for the next packet, so the name is copied out now
+			log.log(Level.INFO, QUERYLOG, new Object[]{source, q.getBusinessNameString()});
+		}
+	}
+	
+	/**
+	 * Makes a log of a received metrics query's address
+	 * @param source address the query was received from
+	 */
+	public void logMetricsQuery(InetAddress source){
+		if(log.isLoggable(Level.INFO)){
+			log.log(Level.INFO, METRICSLOG, source);
+		}
 	}
 	
 	/**
@@ -324,14 +589,14 @@ public class SPAServer {
 	 * and then sends them in a datagram using a given socket.
 	 * 
 	 * @param resp response to encode
-	 * @param addr address to send to
+	 * @param client address to send to
 	 * @throws SPAException in event of encoding error
 	 * @throws IOException in event of system error
 	 */
-	public void sendResponse(SPAResponse resp) throws SPAException, IOException{
+	public void sendResponse(SPAResponse resp, SocketAddress client) throws SPAException, IOException{
 		//send
 		byte[] encResp = resp.encode();
-		DatagramPacket sendPacket = new DatagramPacket(encResp, encResp.length, pkt.getAddress(), pkt.getPort());
+		DatagramPacket sendPacket = new DatagramPacket(encResp, encResp.length, client);
 		sock.send(sendPacket);
 	}
 }
@@ -11,9 +11,8 @@
 
 package SPA.protocol;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * 
@@ -21,7 +20,11 @@ import java.io.IOException;
  * Assignment: Program 4
  *
  * Represents a generic portion of a SPA Message
- * Provides Serialization/Deserialization
+ * Provides Serialization/Deserialization, either as byte arrays or
+ * directly against a ByteBuffer such as a datagram buffer.
+ * Messages with version 3 (0011) are the metrics query and response.
+ * A server that predates them decodes such a query as a SPAQuery too short
+ * to hold a business name, so it answers with a bad length error (0x2A).
  */
 public abstract class SPAMessage {
 	//Byte containing the protocol version (0010),QR flag, and Error Code (0-4)
@@ -33,11 +36,13 @@ public abstract class SPAMessage {
 	protected byte msgID;
 	
 	private final static byte VERSION = 0x20; // Version should be 0010.
+	protected final static byte METRICSVERSION = 0x30; //Version of metrics messages is 0011.
 	private final static byte NOERR = 0x00; //No error is represented by 000
 	private final static byte BADVERERR = 0x01; //Version error is 001
 	private final static byte BADMSGLENERR = 0x02; //Bad Message Length is 010
 	private final static byte BADMSGERR = 0x03; //Bad Message is 011
 	private final static byte SYSERR = 0x04; //System error is 100.
+	protected final static int HEADERLENGTH = 2; //Bytes taken by verQRErr and msgID
 	
 	/**
 	 * default constructor
@@ -53,34 +58,95 @@ public abstract class SPAMessage {
 	 * @param pkt
 	 */
 	public SPAMessage(byte[] pkt) throws SPAException{
+		this(wrap(pkt));
+	}
+	
+	/**
+	 * Constructor reading the header at the position of a buffer.
+	 * The message runs from the buffer's position to its limit,
+	 * neither of which is changed.
+	 * @param buf buffer holding the message
+	 */
+	public SPAMessage(ByteBuffer buf) throws SPAException{
+		if(buf == null){
+			throw new SPAException("Error: Attempted to construct message from null buffer.");
+		}
+		if(buf.remaining() < HEADERLENGTH){
+			throw new SPAException("Error: Insufficient data to construct SPAMessage");
+		}
+		setVerQRErr(buf.get(buf.position()));
+		setMsgID(buf.get(buf.position()+1));
+	}
+	
+	/**
+	 * Wraps a packet in a buffer, rejecting a null one.
+	 * @param pkt packet to wrap
+	 * @return buffer over the whole packet
+	 * @throws SPAException if pkt is null
+	 */
+	private static ByteBuffer wrap(byte[] pkt) throws SPAException{
 		if(pkt == null){
 			throw new SPAException("Error: Attempted to construct message from null array.");
 		}
-		if(pkt.length < 2){
-			throw new SPAException("Error: Insufficient data to construct SPAMessage");
+		return ByteBuffer.wrap(pkt);
+	}
+	
+	/**
+	 * Copies bytes out of a buffer starting at an absolute index,
+	 * leaving the buffer's position unchanged.
+	 * @param buf buffer to read
+	 * @param index index of the first byte to copy
+	 * @param dst array to fill
+	 * @throws IndexOutOfBoundsException if buf ends before dst is full
+	 */
+	static void getBytes(ByteBuffer buf, int index, byte[] dst){
+		for(int i = 0; i < dst.length; i++){
+			dst[i] = buf.get(index+i);
 		}
-		setVerQRErr(pkt[0]);
-		setMsgID(pkt[1]);
 	}
 	
 	/**
 	 * Function that encodes this SPA Message as an array of bytes.
-	 * Abstracted for implementation by queries and responses.
-	 * @return array of bytes containing the SverQRErrPA message
+	 * @return array of bytes containing the SPA message
 	 * @throws SPAException
 	 * @throws IOException 
 	 */
 	public byte[] encode() throws SPAException, IOException{
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream(bytes);
-		out.writeByte(verQRErr);
-		out.writeByte(msgID);
-		out.flush();
-		byte[] msg = bytes.toByteArray();
-		//return that array.
+		return toBytes();
+	}
+	
+	/**
+	 * Encodes this message into an array of exactly its encoded length.
+	 * @return array of bytes containing the SPA message
+	 * @throws SPAException in event of encoding error
+	 */
+	protected byte[] toBytes() throws SPAException{
+		byte[] msg = new byte[encodedLength()];
+		encodeTo(ByteBuffer.wrap(msg));
 		return msg;
 	}
 	
+	/**
+	 * @return number of bytes encodeTo writes for this message
+	 */
+	public int encodedLength(){
+		return HEADERLENGTH;
+	}
+	
+	/**
+	 * Encodes this message at the position of a buffer, advancing it.
+	 * Queries and responses add their own fields after the header.
+	 * @param buf buffer to write to
+	 * @throws SPAException if buf lacks room for the whole message
+	 */
+	public void encodeTo(ByteBuffer buf) throws SPAException{
+		if(buf.remaining() < encodedLength()){
+			throw new SPAException("Error: Insufficient room to encode SPAMessage");
+		}
+		buf.put(verQRErr);
+		buf.put(msgID);
+	}
+	
 	/**
 	 * Function that parses an array of bytes and returns a SPAQuery or SPAResponse
 	 * as appropriate
@@ -94,25 +160,45 @@ public abstract class SPAMessage {
 		if(pkt == null){
 			throw new SPAException("Error: attempted to decode null packet.");
 		}
-		//verify that the pkt is long enough to contain at least a full header.
-		if(pkt.length < 2){
+		return decode(ByteBuffer.wrap(pkt));
+	}
+	
+	/**
+	 * Function that parses the bytes between a buffer's position and limit
+	 * and returns a SPAQuery, SPAResponse, SPAMetricsQuery or SPAMetricsResponse
+	 * as appropriate.
+	 * The buffer's position and limit are left unchanged.
+	 * 
+	 * @param buf buffer holding the message, such as a received datagram
+	 * @return SPAMessage of correct type, determined by reading the header.
+	 * @throws SPAException in event of decoding error
+	 */
+	static public SPAMessage decode(ByteBuffer buf) throws SPAException{
+		if(buf == null){
+			throw new SPAException("Error: attempted to decode null packet.");
+		}
+		//verify that the buffer is long enough to contain at least a full header.
+		if(buf.remaining() < HEADERLENGTH){
 			throw new SPAException("SPAMessage too short: Incomplete Header");
 		}
 		//What we want to do is parse the header, which is common to both
 		//queries and responses, and determine what sort of message we're dealing with.
-		byte vqr = pkt[0]; //the first byte contains our version, QR flag, and Error code.
+		byte vqr = buf.get(buf.position()); //the first byte contains our version, QR flag, and Error code.
 		byte QRcomp = (byte)(vqr & (byte)0x08); //we AND our vqr byte with 0000 1000
 		//This allows us to determine the value of the QR flag.
 		//Once we've identified what sort of message we need to construct, we simply
-		//call the appropriate constructor using the packet we've been given, handle any errors,
+		//call the appropriate constructor using the buffer we've been given, handle any errors,
 		//and return the message.
 		SPAMessage msg = null;
 		
-		if(QRcomp == 0x00){ //if the result is 0, we construct a query
-			msg = new SPAQuery(pkt);
+		if(isMetrics(vqr)){ //metrics messages have a layout of their own
+			msg = (QRcomp == 0x00) ? new SPAMetricsQuery(buf) : new SPAMetricsResponse(buf);
+		}
+		else if(QRcomp == 0x00){ //if the result is 0, we construct a query
+			msg = new SPAQuery(buf);
 		}
 		else if(QRcomp == 0x08){ // if the result is 0000 1000, we construct a response.
-			msg = new SPAResponse(pkt);
+			msg = new SPAResponse(buf);
 		}
 		
 		return msg;
@@ -146,22 +232,34 @@ public abstract class SPAMessage {
 	 * @param vqe
 	 */
 	public void setVerQRErr(byte vqe) throws SPAException{
+		queryResponse = validateVerQRErr(vqe);
+		//then we assign.
+		verQRErr = vqe;
+	}
+	
+	/**
+	 * @param vqe byte holding version, QR flag and error code
+	 * @return true if the version is that of metrics messages
+	 */
+	static boolean isMetrics(byte vqe){
+		return (vqe & 0xF0) == METRICSVERSION;
+	}
+	
+	/**
+	 * Validates vqe for valid version and error values.
+	 * 
+	 * @param vqe byte holding version, QR flag and error code
+	 * @return the QR flag: false for queries, true for responses
+	 * @throws SPAException if the version or error code is invalid
+	 */
+	static boolean validateVerQRErr(byte vqe) throws SPAException{
 		//First we validate the version
 		byte verComp = (byte)(VERSION & vqe);
 		if(verComp != VERSION){
 			throw new SPAException("Error: Bad Version Assignment");
 		}
 		//Next we determine our QR flag.
-		byte QRcomp = (byte)(vqe & 0x08);
-		if(QRcomp == 0x00){
-			queryResponse = false;
-		}
-		else if(QRcomp == 0x08){
-			queryResponse = true;
-		}
-		else{
-			throw new SPAException("Unexpected QR value");
-		}
+		boolean response = (vqe & 0x08) != 0;
 		//Then we validate the error code.
 		byte errComp = (byte)(vqe & 0x07); //this zeroes out the Version byte and QR bit,
 		//allowing for easier comparison to our error code constants.
@@ -170,9 +268,7 @@ public abstract class SPAMessage {
 			&& errComp != SYSERR){
 			throw new SPAException("Error: Bad Error Code assignment");
 		}
-		
-		//then we assign.
-		verQRErr = vqe;
+		return response;
 	}
 	
 }
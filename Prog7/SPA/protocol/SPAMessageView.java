@@ -0,0 +1,189 @@
+package SPA.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * @author Corey Royse
+ * Assignment: Program 4
+ *
+ * Read-only view of a SPAMessage sitting in a ByteBuffer, such as a received
+ * datagram. Wrapping validates the message exactly as SPAMessage.decode would,
+ * but fields are read straight out of the buffer, so nothing is copied or
+ * allocated. A view may be rewrapped for every message a thread handles,
+ * and is only good until its buffer is next written.
+ */
+public class SPAMessageView {
+
+	private ByteBuffer buf; //Buffer holding the message
+	private int start; //Index in buf of the message's first byte
+	private boolean queryResponse; //false for queries, true for responses
+	private boolean metrics; //true for SPAMetricsQuery and SPAMetricsResponse
+
+	/**
+	 * Points this view at the message between a buffer's position and limit,
+	 * neither of which is changed.
+	 *
+	 * @param buf buffer holding the message
+	 * @return this view
+	 * @throws SPAException if the bytes would not decode as a SPAMessage
+	 */
+	public SPAMessageView wrap(ByteBuffer buf) throws SPAException{
+		if(buf == null){
+			throw new SPAException("Error: attempted to decode null packet.");
+		}
+		if(buf.remaining() < SPAMessage.HEADERLENGTH){
+			throw new SPAException("SPAMessage too short: Incomplete Header");
+		}
+		int start = buf.position();
+		boolean response = SPAMessage.validateVerQRErr(buf.get(start));
+		boolean metrics = SPAMessage.isMetrics(buf.get(start));
+		if(metrics && response){
+			validateMetricsResponse(buf, start);
+		}
+		else if(metrics){
+			//A metrics query is a bare header
+			if(buf.remaining() != SPAMessage.HEADERLENGTH){
+				throw new SPAException("Specified Length does not match actual");
+			}
+		}
+		else if(response){
+			validateResponse(buf, start);
+		}
+		else{
+			validateQuery(buf, start);
+		}
+		this.buf = buf;
+		this.start = start;
+		this.queryResponse = response;
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Checks that a query's name is as long as its length byte says.
+	 */
+	private static void validateQuery(ByteBuffer buf, int start) throws SPAException{
+		if(buf.remaining() < SPAMessage.HEADERLENGTH+1){
+			throw new SPAException("Error: packet too short to construct full query");
+		}
+		int nameLen = buf.get(start+SPAMessage.HEADERLENGTH) & 0xFF;
+		if(nameLen != buf.remaining()-SPAMessage.HEADERLENGTH-1){
+			throw new SPAException("Specified Length does not match actual");
+		}
+	}
+
+	/**
+	 * Walks a response's application entries, checking that each fits in the buffer.
+	 */
+	private static void validateResponse(ByteBuffer buf, int start) throws SPAException{
+		int end = buf.limit();
+		int i = start + SPAMessage.HEADERLENGTH + 4; //skip the timestamp
+		if(i >= end){
+			throw new SPAException("Error: Error parsing packet");
+		}
+		int appCount = buf.get(i++) & 0xFF;
+		for(int app = 0; app < appCount; app++){
+			if(end - i < 3){
+				throw new SPAException("Error: Error parsing packet");
+			}
+			i += 3 + (buf.get(i+2) & 0xFF);
+			if(i > end){
+				throw new SPAException("Error: Error parsing packet");
+			}
+		}
+	}
+
+	/**
+	 * Walks a metrics response's function entries, checking that each fits in the buffer.
+	 */
+	private static void validateMetricsResponse(ByteBuffer buf, int start) throws SPAException{
+		int end = buf.limit();
+		int i = start + SPAMessage.HEADERLENGTH + 20; //skip the five figures
+		if(i >= end){
+			throw new SPAException("Error: Error parsing packet");
+		}
+		int functionCount = buf.get(i++) & 0xFF;
+		for(int f = 0; f < functionCount; f++){
+			if(i >= end){
+				throw new SPAException("Error: Error parsing packet");
+			}
+			i += 1 + (buf.get(i) & 0xFF) + 12; //name length, name and percentiles
+			if(i > end){
+				throw new SPAException("Error: Error parsing packet");
+			}
+		}
+	}
+
+	/**
+	 * @return verQRErr
+	 */
+	public byte getVerQRErr(){
+		return buf.get(start);
+	}
+
+	/**
+	 * @return msgID
+	 */
+	public byte getMsgID(){
+		return buf.get(start+1);
+	}
+
+	/**
+	 * @return false for queries, true for responses
+	 */
+	public boolean isResponse(){
+		return queryResponse;
+	}
+
+	/**
+	 * @return true for a SPAMetricsQuery or SPAMetricsResponse, whose
+	 * fields other than the header this view does not read
+	 */
+	public boolean isMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * @return businessNameLength of a query
+	 */
+	public byte getBusinessNameLength(){
+		return buf.get(start+SPAMessage.HEADERLENGTH);
+	}
+
+	/**
+	 * @param index index of the character within the name
+	 * @return one ASCII character of a query's business name
+	 */
+	public byte getBusinessNameByte(int index){
+		return buf.get(start+SPAMessage.HEADERLENGTH+1+index);
+	}
+
+	/**
+	 * Decodes a query's business name. This is the one accessor that
+	 * allocates, so call it only when the name is really needed.
+	 *
+	 * @return the business name
+	 */
+	public String getBusinessNameString(){
+		int len = getBusinessNameLength() & 0xFF;
+		byte[] name = new byte[len];
+		SPAMessage.getBytes(buf, start+SPAMessage.HEADERLENGTH+1, name);
+		return new String(name, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return a response's timeStamp
+	 */
+	public int getTimeStamp(){
+		return buf.getInt(start+SPAMessage.HEADERLENGTH);
+	}
+
+	/**
+	 * @return a response's appCount
+	 */
+	public byte getAppCount(){
+		return buf.get(start+SPAMessage.HEADERLENGTH+4);
+	}
+}
@@ -0,0 +1,70 @@
+package SPA.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Corey Royse
+ * Assignment: Program 4
+ *
+ * Class that represents a SPAMetricsQuery, asking a server for a snapshot of
+ * its operational figures. It is a bare header with version 3 (0011),
+ * QR flag 0 and error code 0; the answer is a SPAMetricsResponse.
+ */
+public class SPAMetricsQuery extends SPAMessage{
+
+	/**
+	 * default constructor
+	 */
+	public SPAMetricsQuery(){
+		super();
+		verQRErr = METRICSVERSION; //version: 0011, QR: 0, Err: 000
+	}
+
+	/**
+	 * Constructor that takes a byte array.
+	 * Called by SPAMessage decode function.
+	 * @param pkt byte array containing our query
+	 */
+	public SPAMetricsQuery(byte[] pkt) throws SPAException{
+		this(pkt == null ? null : ByteBuffer.wrap(pkt));
+	}
+
+	/**
+	 * Constructor reading the query between a buffer's position and limit,
+	 * neither of which is changed.
+	 * Called by SPAMessage decode function.
+	 * @param buf buffer containing our query
+	 */
+	public SPAMetricsQuery(ByteBuffer buf) throws SPAException{
+		super(buf);
+		if(queryResponse){
+			throw new SPAException("Error: Attempted to construct Query from Response");
+		}
+		if(buf.remaining() != HEADERLENGTH){
+			throw new SPAException("Specified Length does not match actual");
+		}
+	}
+
+	/**
+	 * Validates vqe as for any SPAMessage, additionally requiring the
+	 * version of metrics messages, then sets verQRErr
+	 *
+	 * @param vqe
+	 */
+	@Override
+	public void setVerQRErr(byte vqe) throws SPAException{
+		if(!isMetrics(vqe)){
+			throw new SPAException("Error: Bad Version Assignment");
+		}
+		super.setVerQRErr(vqe);
+	}
+
+	/**
+	 * @see SPA.protocol.SPAMessage#encode()
+	 */
+	@Override
+	public byte[] encode() throws SPAException {
+		return toBytes();
+	}
+}
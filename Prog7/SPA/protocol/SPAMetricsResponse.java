@@ -0,0 +1,310 @@
+package SPA.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Corey Royse
+ * Assignment: Program 4
+ *
+ * Class that represents a SPAMetricsResponse, the answer to a SPAMetricsQuery:
+ * a snapshot of a server's open connections, request rate, selector loop lag,
+ * log queue depth and latency percentiles for each function. Laid out like a
+ * SPAResponse, all big endian: the header (version 3, QR flag 1), five 4 byte
+ * figures, then a count of functions, each given as a length byte, its ASCII
+ * name and three 4 byte percentiles.
+ */
+public class SPAMetricsResponse extends SPAMessage{
+
+	private final static int FIGURESLENGTH = 20; //Bytes taken by the five figures ahead of the functions
+	private final static int PERCENTILESLENGTH = 12; //Bytes taken by each function's percentiles
+	private final static int MAXFUNCTIONS = 0xFF; //Most functions functionCount can carry
+	private final static int MAXNAMELENGTH = 0xFF; //Longest name a length byte can carry
+
+	//Time in seconds since 1970 at which the figures were taken
+	private int timeStamp;
+	//Number of client connections open
+	private int openConnections;
+	//Requests handled per second, in hundredths
+	private int requestRate;
+	//Longest time in microseconds a selector loop spent between selects, 0 if the server has none
+	private int loopLag;
+	//Number of log records waiting to be written
+	private int logQueueDepth;
+	//Number of function records present.
+	private byte functionCount;
+	//array of bytes, each containing the number of characters
+	//in a given function's name.
+	private byte[] functionNameLength;
+	//A two dimensional byte array, containing ASCII encoded characters
+	//that comprise each function's name.
+	private byte[][] functionNames;
+	//50th, 99th and 99.9th percentile of each function's latency in microseconds
+	private int[] p50;
+	private int[] p99;
+	private int[] p999;
+
+	/**
+	 * default constructor
+	 */
+	public SPAMetricsResponse(){
+		super();
+		verQRErr = (byte) (METRICSVERSION | 0x08); //version: 0011, QR: 1, Err: 000
+		queryResponse = true;
+		functionCount = 0;
+		functionNameLength = new byte[0];
+		functionNames = new byte[0][0];
+		p50 = new int[0];
+		p99 = new int[0];
+		p999 = new int[0];
+	}
+
+	/**
+	 * constructor from a single packet of bytes
+	 * @param pkt
+	 */
+	public SPAMetricsResponse(byte[] pkt) throws SPAException{
+		this(pkt == null ? null : ByteBuffer.wrap(pkt));
+	}
+
+	/**
+	 * constructor reading the response between a buffer's position and limit,
+	 * neither of which is changed
+	 * @param buf buffer containing our response
+	 */
+	public SPAMetricsResponse(ByteBuffer buf) throws SPAException{
+		super(buf);
+		if(!queryResponse){
+			throw new SPAException("Error: Attempted to build SPAMetricsResponse from SPAMetricsQuery");
+		}
+		int end = buf.limit();
+		//skip the VQR and msgID bytes - we already validated those in the superconstructor.
+		int i = buf.position() + HEADERLENGTH;
+		try{
+			timeStamp = buf.getInt(i);
+			openConnections = buf.getInt(i+4);
+			requestRate = buf.getInt(i+8);
+			loopLag = buf.getInt(i+12);
+			logQueueDepth = buf.getInt(i+16);
+			i += FIGURESLENGTH;
+			functionCount = buf.get(i++);
+			int count = functionCount & 0xFF;
+			functionNameLength = new byte[count];
+			functionNames = new byte[count][];
+			p50 = new int[count];
+			p99 = new int[count];
+			p999 = new int[count];
+			for(int f = 0; f < count; f++){
+				functionNameLength[f] = buf.get(i++);
+				int nameLengthInt = functionNameLength[f] & 0xFF;
+				if(nameLengthInt > end - i){
+					throw new SPAException("Error: Error parsing packet");
+				}
+				functionNames[f] = new byte[nameLengthInt];
+				getBytes(buf, i, functionNames[f]);
+				i += nameLengthInt;
+				p50[f] = buf.getInt(i);
+				p99[f] = buf.getInt(i+4);
+				p999[f] = buf.getInt(i+8);
+				i += PERCENTILESLENGTH;
+			}
+		}catch(IndexOutOfBoundsException e){
+			//we ran out of buffer before the last field
+			throw new SPAException("Error: Error parsing packet");
+		}
+	}
+
+	/**
+	 * @see SPA.protocol.SPAMessage#encode()
+	 */
+	@Override
+	public byte[] encode() throws SPAException {
+		return toBytes();
+	}
+
+	/**
+	 * @see SPA.protocol.SPAMessage#encodedLength()
+	 */
+	@Override
+	public int encodedLength(){
+		int len = HEADERLENGTH + FIGURESLENGTH + 1; //figures and functionCount
+		int count = functionCount & 0xFF;
+		for(int i = 0; i < count; i++){
+			len += 1 + (functionNameLength[i] & 0xFF) + PERCENTILESLENGTH;
+		}
+		return len;
+	}
+
+	/**
+	 * @see SPA.protocol.SPAMessage#encodeTo(ByteBuffer)
+	 */
+	@Override
+	public void encodeTo(ByteBuffer buf) throws SPAException{
+		super.encodeTo(buf);
+		buf.putInt(timeStamp);
+		buf.putInt(openConnections);
+		buf.putInt(requestRate);
+		buf.putInt(loopLag);
+		buf.putInt(logQueueDepth);
+		buf.put(functionCount);
+		int count = functionCount & 0xFF;
+		for(int i = 0; i < count; i++){
+			buf.put(functionNameLength[i]);
+			buf.put(functionNames[i], 0, functionNameLength[i] & 0xFF);
+			buf.putInt(p50[i]);
+			buf.putInt(p99[i]);
+			buf.putInt(p999[i]);
+		}
+	}
+
+	/**
+	 * Validates vqe as for any SPAMessage, additionally requiring the
+	 * version of metrics messages, then sets verQRErr
+	 *
+	 * @param vqe
+	 */
+	@Override
+	public void setVerQRErr(byte vqe) throws SPAException{
+		if(!isMetrics(vqe)){
+			throw new SPAException("Error: Bad Version Assignment");
+		}
+		super.setVerQRErr(vqe);
+	}
+
+	/**
+	 * Appends a function's latency percentiles.
+	 *
+	 * @param name ASCII encoded name of the function
+	 * @param median 50th percentile in microseconds
+	 * @param ninetyNinth 99th percentile in microseconds
+	 * @param ninetyNinePointNinth 99.9th percentile in microseconds
+	 * @throws SPAException if the name is null or too long, or there is no room for another function
+	 */
+	public void addFunction(byte[] name, int median, int ninetyNinth, int ninetyNinePointNinth) throws SPAException{
+		if(name == null || name.length > MAXNAMELENGTH){
+			throw new SPAException("Error: Invalid function name");
+		}
+		int count = functionCount & 0xFF;
+		if(count == MAXFUNCTIONS){
+			throw new SPAException("Error: Too many functions");
+		}
+		functionNameLength = Arrays.copyOf(functionNameLength, count+1);
+		functionNames = Arrays.copyOf(functionNames, count+1);
+		p50 = Arrays.copyOf(p50, count+1);
+		p99 = Arrays.copyOf(p99, count+1);
+		p999 = Arrays.copyOf(p999, count+1);
+		functionNameLength[count] = (byte) name.length;
+		functionNames[count] = name.clone();
+		p50[count] = median;
+		p99[count] = ninetyNinth;
+		p999[count] = ninetyNinePointNinth;
+		functionCount = (byte) (count+1);
+	}
+
+	/**
+	 * @return timeStamp
+	 */
+	public int getTimeStamp(){
+		return timeStamp;
+	}
+
+	/**
+	 * Sets timeStamp - no validation is necessary
+	 */
+	public void setTimeStamp(int time){
+		timeStamp = time;
+	}
+
+	/**
+	 * @return number of client connections open
+	 */
+	public int getOpenConnections(){
+		return openConnections;
+	}
+
+	/**
+	 * Sets openConnections - no validation is necessary
+	 */
+	public void setOpenConnections(int connections){
+		openConnections = connections;
+	}
+
+	/**
+	 * @return requests handled per second, in hundredths
+	 */
+	public int getRequestRate(){
+		return requestRate;
+	}
+
+	/**
+	 * Sets requestRate - no validation is necessary
+	 * @param rate requests handled per second, in hundredths
+	 */
+	public void setRequestRate(int rate){
+		requestRate = rate;
+	}
+
+	/**
+	 * @return longest selector loop lag in microseconds
+	 */
+	public int getLoopLag(){
+		return loopLag;
+	}
+
+	/**
+	 * Sets loopLag - no validation is necessary
+	 * @param lag longest selector loop lag in microseconds
+	 */
+	public void setLoopLag(int lag){
+		loopLag = lag;
+	}
+
+	/**
+	 * @return number of log records waiting to be written
+	 */
+	public int getLogQueueDepth(){
+		return logQueueDepth;
+	}
+
+	/**
+	 * Sets logQueueDepth - no validation is necessary
+	 */
+	public void setLogQueueDepth(int depth){
+		logQueueDepth = depth;
+	}
+
+	/**
+	 * @return functionCount
+	 */
+	public byte getFunctionCount(){
+		return functionCount;
+	}
+
+	/**
+	 * @return functionNames
+	 */
+	public byte[][] getFunctionNames(){
+		return functionNames;
+	}
+
+	/**
+	 * @return 50th percentile of each function's latency in microseconds
+	 */
+	public int[] getP50s(){
+		return p50;
+	}
+
+	/**
+	 * @return 99th percentile of each function's latency in microseconds
+	 */
+	public int[] getP99s(){
+		return p99;
+	}
+
+	/**
+	 * @return 99.9th percentile of each function's latency in microseconds
+	 */
+	public int[] getP999s(){
+		return p999;
+	}
+}
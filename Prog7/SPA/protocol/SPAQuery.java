@@ -1,9 +1,6 @@
 package SPA.protocol;
 
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * 
@@ -34,26 +31,35 @@ public class SPAQuery extends SPAMessage{
 	 * @param pkt byte array containing our query
 	 */
 	public SPAQuery(byte[] pkt) throws SPAException{
-		super(pkt);
+		this(pkt == null ? null : ByteBuffer.wrap(pkt));
+	}
+	
+	/**
+	 * Constructor reading the query between a buffer's position and limit,
+	 * neither of which is changed.
+	 * Called by SPAMessage decode function.
+	 * @param buf buffer containing our query
+	 */
+	public SPAQuery(ByteBuffer buf) throws SPAException{
+		super(buf);
 		//Validate that we are constructing a query and
 		//have enough data to do so.
 		if(queryResponse){
 			throw new SPAException("Error: Attempted to construct Query from Response");
 		}
-		if(pkt.length < 3){
+		if(buf.remaining() < HEADERLENGTH+1){
 			throw new SPAException("Error: packet too short to construct full query");
 		}
-		int bizLen = pkt[2] & 0xFF;
-		byte[] bizName = null;
-		
-		if(bizLen > 0){
-		  bizName = Arrays.copyOfRange(pkt, 3, pkt.length);
-		}
-		else{
-			bizName = new byte[0];
+		int start = buf.position();
+		byte nameLen = buf.get(start+HEADERLENGTH);
+		//Everything after the length byte is the name
+		if((nameLen & 0xFF) != buf.remaining()-HEADERLENGTH-1){
+			throw new SPAException("Specified Length does not match actual");
 		}
+		byte[] bizName = new byte[nameLen & 0xFF];
+		getBytes(buf, start+HEADERLENGTH+1, bizName);
 		//set
-		setBusinessName(pkt[2],bizName);
+		setBusinessName(nameLen,bizName);
 	}
 	
 	/** 
@@ -61,24 +67,25 @@ public class SPAQuery extends SPAMessage{
 	 */
 	@Override
 	public byte[] encode() throws SPAException {
-		//simply store all our data in a single byte array in the proper order
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		byte[] header;
-		out.write(businessNameLength);
-		try {
-			header = super.encode();
-			out.write(businessName);
-		} catch (IOException e) {
-			throw new SPAException(e.getMessage());
-		}
-		
-		byte[] msg = out.toByteArray();
-		
-		byte[] ret = new byte[header.length + msg.length];
-		System.arraycopy(header,0,ret,0,header.length);
-		System.arraycopy(msg,0,ret,header.length,msg.length);
-		// return that array.
-		return ret;
+		return toBytes();
+	}
+	
+	/**
+	 * @see SPA.protocol.SPAMessage#encodedLength()
+	 */
+	@Override
+	public int encodedLength(){
+		return HEADERLENGTH + 1 + businessName.length;
+	}
+	
+	/**
+	 * @see SPA.protocol.SPAMessage#encodeTo(ByteBuffer)
+	 */
+	@Override
+	public void encodeTo(ByteBuffer buf) throws SPAException{
+		super.encodeTo(buf);
+		buf.put(businessNameLength);
+		buf.put(businessName);
 	}
 	
 	/**
@@ -1,10 +1,6 @@
 package SPA.protocol;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Corey Royse
@@ -47,55 +43,50 @@ public class SPAResponse extends SPAMessage{
 	 * @param pkt
 	 */
 	public SPAResponse(byte[] pkt) throws SPAException{
-		super(pkt);
+		this(pkt == null ? null : ByteBuffer.wrap(pkt));
+	}
+	
+	/**
+	 * constructor reading the response between a buffer's position and limit,
+	 * neither of which is changed
+	 * @param buf buffer containing our response
+	 */
+	public SPAResponse(ByteBuffer buf) throws SPAException{
+		super(buf);
 		if(!queryResponse){
 			throw new SPAException("Error: Attempted to build SPAResponse from SPAQuery");
 		}
-		//Inputstreams used to parse the packet
-		ByteArrayInputStream bs = new ByteArrayInputStream(pkt);
-		DataInputStream in = new DataInputStream(bs);
-		
+		int end = buf.limit();
+		//skip the VQR and msgID bytes - we already validated those in the superconstructor.
+		int i = buf.position() + HEADERLENGTH;
 		try{
-			//read past the VQR and msgID bytes - we already validated those in the superconstructor.
-			in.readShort();
 			//read timestamp
-			int time = in.readInt();
-			setTimeStamp(time);
+			setTimeStamp(buf.getInt(i));
+			i += 4;
 			//Read appCount
-			appCount = in.readByte();
+			appCount = buf.get(i++);
 			int appCountInt = appCount & 0xFF;
 			appUseCount = new short[appCountInt];
 			appNameLength = new byte[appCountInt];
 			appNames = new byte[appCountInt][];
 			//For each app
-			int appsRead = 0;
-			boolean doneReading = false;
-			if(appCountInt != 0){
-				do{
-					//Read use count
-					appUseCount[appsRead] = in.readShort();
-					//Read length
-					appNameLength[appsRead] = in.readByte();
-					int nameLengthInt = appNameLength[appsRead] & 0xFF;
-					appNames[appsRead] = new byte[nameLengthInt];
-					//Read in appropriate number of characters
-					int read = in.read(appNames[appsRead]);
-					if(read == -1){
-						//if we run out of buffer, we're done.
-						doneReading = true;
-					}
-					appsRead++;
-				}while(appsRead < appCountInt && !doneReading);
-			}
-			else{
-				doneReading = true;
-			}
-			
-			if(doneReading && appsRead < appCountInt){
-				throw new SPAException("Error: Error parsing packet");
+			for(int app = 0; app < appCountInt; app++){
+				//Read use count
+				appUseCount[app] = buf.getShort(i);
+				i += 2;
+				//Read length
+				appNameLength[app] = buf.get(i++);
+				int nameLengthInt = appNameLength[app] & 0xFF;
+				//Read in appropriate number of characters
+				if(nameLengthInt > end - i){
+					throw new SPAException("Error: Error parsing packet");
+				}
+				appNames[app] = new byte[nameLengthInt];
+				getBytes(buf, i, appNames[app]);
+				i += nameLengthInt;
 			}
-			
-		}catch(IOException e){
+		}catch(IndexOutOfBoundsException e){
+			//we ran out of buffer before the last field
 			throw new SPAException("Error: Error parsing packet");
 		}
 	}
@@ -105,33 +96,36 @@ public class SPAResponse extends SPAMessage{
 	 */
 	@Override
 	public byte[] encode() throws SPAException {
-		//simply store all our data in a single byte array in the proper order
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream(bytes);
-		byte[] header;
-		try {
-			header = super.encode();
-			out.writeInt(timeStamp);
-			out.writeByte(appCount);
-			int appCountInt = appCount & 0xFF;
-			for(int i = 0; i < appCountInt; i++){
-				out.writeShort(appUseCount[i]);
-				out.writeByte(appNameLength[i]);
-				int appLength = appNameLength[i] & 0xFF;
-				for(int j = 0; j < appLength; j++){
-					out.writeByte(appNames[i][j]);
-				}
-			}
-			out.flush();
-		} catch (IOException e) {
-			throw new SPAException("Error Encoding Response: " + e.getMessage());
+		return toBytes();
+	}
+	
+	/**
+	 * @see SPA.protocol.SPAMessage#encodedLength()
+	 */
+	@Override
+	public int encodedLength(){
+		int len = HEADERLENGTH + 5; //timestamp and appCount
+		int appCountInt = appCount & 0xFF;
+		for(int i = 0; i < appCountInt; i++){
+			len += 3 + (appNameLength[i] & 0xFF);
+		}
+		return len;
+	}
+	
+	/**
+	 * @see SPA.protocol.SPAMessage#encodeTo(ByteBuffer)
+	 */
+	@Override
+	public void encodeTo(ByteBuffer buf) throws SPAException{
+		super.encodeTo(buf);
+		buf.putInt(timeStamp);
+		buf.put(appCount);
+		int appCountInt = appCount & 0xFF;
+		for(int i = 0; i < appCountInt; i++){
+			buf.putShort(appUseCount[i]);
+			buf.put(appNameLength[i]);
+			buf.put(appNames[i], 0, appNameLength[i] & 0xFF);
 		}
-		byte[] msg = bytes.toByteArray();
-		byte[] ret = new byte[header.length + msg.length];
-		System.arraycopy(header,0,ret,0,header.length);
-		System.arraycopy(msg,0,ret,header.length,msg.length);
-		//return that array.
-		return ret;
 	}
 	
 	/**
@@ -0,0 +1,60 @@
+package SPA.protocol.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import SPA.protocol.SPAException;
+import SPA.protocol.SPAMessage;
+import SPA.protocol.SPAMessageView;
+import SPA.protocol.SPAMetricsQuery;
+
+public class SPAMetricsQueryTest {
+
+	/**
+	 * Tests that an encoded metrics query is a bare version 3 header
+	 * and decodes back to a metrics query
+	 *
+	 * @throws IOException
+	 * @throws SPAException
+	 */
+	@Test
+	public void encodeDecodeTest() throws IOException, SPAException {
+		SPAMetricsQuery q = new SPAMetricsQuery();
+		q.setMsgID((byte) 0x42);
+		byte[] expected = {0x30, 0x42}; //ver:0011 QR: 0 Err: 000
+		assertArrayEquals(expected, q.encode());
+
+		SPAMessage m = SPAMessage.decode(expected);
+		assertTrue(m instanceof SPAMetricsQuery);
+		assertEquals(0x42, m.getMsgID());
+
+		SPAMessageView view = new SPAMessageView().wrap(ByteBuffer.wrap(expected));
+		assertTrue(view.isMetrics());
+		assertFalse(view.isResponse());
+	}
+
+	/**
+	 * Tests that a metrics query with anything after its header is rejected
+	 *
+	 * @throws SPAException
+	 */
+	@Test(expected = SPAException.class)
+	public void trailingBytesTest() throws SPAException {
+		byte[] pkt = {0x30, 0x01, 0x00};
+		SPAMessage.decode(pkt);
+	}
+
+	/**
+	 * Tests that a metrics query cannot be given the version of other messages
+	 *
+	 * @throws SPAException
+	 */
+	@Test(expected = SPAException.class)
+	public void badVersionTest() throws SPAException {
+		new SPAMetricsQuery().setVerQRErr((byte) 0x20);
+	}
+}
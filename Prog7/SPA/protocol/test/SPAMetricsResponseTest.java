@@ -0,0 +1,120 @@
+package SPA.protocol.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import SPA.protocol.SPAException;
+import SPA.protocol.SPAMessage;
+import SPA.protocol.SPAMessageView;
+import SPA.protocol.SPAMetricsResponse;
+
+public class SPAMetricsResponseTest {
+
+	/**
+	 * Tests that a metrics response encodes in the documented layout
+	 *
+	 * @throws IOException
+	 * @throws SPAException
+	 */
+	@Test
+	public void encodeTest() throws IOException, SPAException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0x38); //ver:0011 QR: 1 Err: 000
+		out.writeByte(0x07); //msgID
+		out.writeInt(1000); //timestamp
+		out.writeInt(12); //open connections
+		out.writeInt(250); //2.5 requests per second
+		out.writeInt(40); //loop lag
+		out.writeInt(3); //log queue depth
+		out.writeByte(1); //functionCount
+		out.writeByte(4);
+		out.writeBytes("Poll");
+		out.writeInt(10);
+		out.writeInt(90);
+		out.writeInt(900);
+		out.flush();
+
+		SPAMetricsResponse r = new SPAMetricsResponse();
+		r.setMsgID((byte) 0x07);
+		r.setTimeStamp(1000);
+		r.setOpenConnections(12);
+		r.setRequestRate(250);
+		r.setLoopLag(40);
+		r.setLogQueueDepth(3);
+		r.addFunction("Poll".getBytes("US-ASCII"), 10, 90, 900);
+		assertArrayEquals(bytes.toByteArray(), r.encode());
+	}
+
+	/**
+	 * Tests that decoding an encoded metrics response restores every field,
+	 * and that a view accepts it
+	 *
+	 * @throws IOException
+	 * @throws SPAException
+	 */
+	@Test
+	public void roundTripTest() throws IOException, SPAException {
+		SPAMetricsResponse r = new SPAMetricsResponse();
+		r.setMsgID((byte) 0x11);
+		r.setOpenConnections(5);
+		r.setRequestRate(123456);
+		r.setLogQueueDepth(8);
+		r.addFunction("Hello".getBytes("US-ASCII"), 1, 2, 3);
+		r.addFunction("Other".getBytes("US-ASCII"), 4, 5, 6);
+		ByteBuffer buf = ByteBuffer.allocate(r.encodedLength());
+		r.encodeTo(buf);
+		buf.flip();
+
+		SPAMessage m = SPAMessage.decode(buf);
+		assertTrue(m instanceof SPAMetricsResponse);
+		SPAMetricsResponse actual = (SPAMetricsResponse) m;
+		assertEquals(0x11, actual.getMsgID());
+		assertEquals(5, actual.getOpenConnections());
+		assertEquals(123456, actual.getRequestRate());
+		assertEquals(8, actual.getLogQueueDepth());
+		assertEquals(2, actual.getFunctionCount());
+		assertArrayEquals("Other".getBytes("US-ASCII"), actual.getFunctionNames()[1]);
+		assertEquals(4, actual.getP50s()[1]);
+		assertEquals(5, actual.getP99s()[1]);
+		assertEquals(6, actual.getP999s()[1]);
+
+		SPAMessageView view = new SPAMessageView().wrap(buf);
+		assertTrue(view.isMetrics());
+		assertTrue(view.isResponse());
+	}
+
+	/**
+	 * Tests that a metrics response cut off in a function's percentiles is rejected
+	 *
+	 * @throws IOException
+	 * @throws SPAException
+	 */
+	@Test(expected = SPAException.class)
+	public void truncatedTest() throws IOException, SPAException {
+		SPAMetricsResponse r = new SPAMetricsResponse();
+		r.addFunction("Poll".getBytes("US-ASCII"), 1, 2, 3);
+		byte[] pkt = r.encode();
+		SPAMessage.decode(ByteBuffer.wrap(pkt, 0, pkt.length - 1));
+	}
+
+	/**
+	 * Tests that a view rejects a metrics response cut off in a function's percentiles
+	 *
+	 * @throws IOException
+	 * @throws SPAException
+	 */
+	@Test(expected = SPAException.class)
+	public void truncatedViewTest() throws IOException, SPAException {
+		SPAMetricsResponse r = new SPAMetricsResponse();
+		r.addFunction("Poll".getBytes("US-ASCII"), 1, 2, 3);
+		byte[] pkt = r.encode();
+		new SPAMessageView().wrap(ByteBuffer.wrap(pkt, 0, pkt.length - 1));
+	}
+}
@@ -2,10 +2,13 @@ package SPA.protocol.test;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 import SPA.protocol.SPAException;
 import SPA.protocol.SPAMessage;
+import SPA.protocol.SPAMessageView;
 import SPA.protocol.SPAQuery;
 
 /***********************
@@ -191,4 +194,67 @@ public class SPAQueryTest {
 		
 		assertEquals(name,q.getBusinessName());
 	}
+	
+	/**
+	 * Tests encoding a query into the middle of a buffer and decoding it back
+	 * @throws SPAException
+	 */
+	@Test
+	public void testBufferRoundTrip() throws SPAException{
+		SPAQuery q = new SPAQuery();
+		q.setMsgID((byte)0x03);
+		q.setBusinessName((byte)3, new byte[]{'b','i','z'});
+		
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		buf.put((byte)0x7F); //junk ahead of the message
+		q.encodeTo(buf);
+		assertEquals(1 + q.encodedLength(), buf.position());
+		buf.flip();
+		buf.position(1);
+		
+		SPAQuery actual = (SPAQuery) SPAMessage.decode(buf);
+		assertEquals(1, buf.position());
+		assertEquals(q.getMsgID(), actual.getMsgID());
+		assertArrayEquals(q.getBusinessName(), actual.getBusinessName());
+		assertArrayEquals(q.encode(), actual.encode());
+	}
+	
+	/**
+	 * Tests encoding into a buffer without room for the whole query
+	 * @throws SPAException
+	 */
+	@Test(expected = SPAException.class)
+	public void testEncodeToShortBuffer() throws SPAException{
+		SPAQuery q = new SPAQuery();
+		q.setBusinessName((byte)3, new byte[]{'b','i','z'});
+		q.encodeTo(ByteBuffer.allocate(5));
+	}
+	
+	/**
+	 * Tests reading a query in place through a view
+	 * @throws SPAException
+	 */
+	@Test
+	public void testView() throws SPAException{
+		byte[] pkt = {0x20, 0x03, 0x03, 'b', 'i', 'z'};
+		
+		SPAMessageView view = new SPAMessageView().wrap(ByteBuffer.wrap(pkt));
+		assertFalse(view.isResponse());
+		assertEquals(0x20, view.getVerQRErr());
+		assertEquals(0x03, view.getMsgID());
+		assertEquals(0x03, view.getBusinessNameLength());
+		assertEquals('z', view.getBusinessNameByte(2));
+		assertEquals("biz", view.getBusinessNameString());
+	}
+	
+	/**
+	 * Tests that a view rejects a query whose name length is wrong
+	 * @throws SPAException
+	 */
+	@Test(expected = SPAException.class)
+	public void testViewBadBizLen() throws SPAException{
+		byte[] pkt = {0x20, 0x03, 0x07, 'b', 'i', 'z'};
+		
+		new SPAMessageView().wrap(ByteBuffer.wrap(pkt));
+	}
 }
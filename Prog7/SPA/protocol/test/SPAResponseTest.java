@@ -5,11 +5,13 @@ import static org.junit.Assert.*;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
 import SPA.protocol.SPAException;
 import SPA.protocol.SPAMessage;
+import SPA.protocol.SPAMessageView;
 import SPA.protocol.SPAResponse;
 
 public class SPAResponseTest {
@@ -223,5 +225,65 @@ public class SPAResponseTest {
 		@SuppressWarnings("unused")
 		SPAMessage r = SPAMessage.decode(badPkt);
 	}
+	
+	/**
+	 * Tests that encodeTo writes the same bytes as encode, and that
+	 * a buffer decodes and views to the same response
+	 * @throws IOException
+	 * @throws SPAException
+	 */
+	@Test
+	public void bufferRoundTripTest() throws IOException, SPAException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0x28); //ver:0010 QR: 1 Err: 000
+		out.writeByte(0x03); //MsgID = 0011
+		out.writeInt(1234); //timeStamp
+		out.writeByte(2); //appCount = 2
+		out.writeShort(3);
+		out.writeByte(3);
+		out.writeBytes("app");
+		out.writeShort(4);
+		out.writeByte(5);
+		out.writeBytes("myapp");
+		out.flush();
+		byte[] expected = bytes.toByteArray();
+		
+		SPAResponse r = (SPAResponse) SPAMessage.decode(ByteBuffer.wrap(expected));
+		assertEquals(expected.length, r.encodedLength());
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		r.encodeTo(buf);
+		assertEquals(expected.length, buf.position());
+		buf.flip();
+		byte[] actual = new byte[buf.remaining()];
+		buf.get(actual);
+		assertArrayEquals(expected, actual);
+		
+		SPAMessageView view = new SPAMessageView().wrap(ByteBuffer.wrap(expected));
+		assertTrue(view.isResponse());
+		assertEquals(1234, view.getTimeStamp());
+		assertEquals(2, view.getAppCount());
+	}
+	
+	/**
+	 * Tests decoding a response whose last name is cut short
+	 * @throws IOException
+	 * @throws SPAException
+	 */
+	@Test(expected = SPAException.class)
+	public void truncatedNameTest() throws IOException, SPAException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0x28); //ver:0010 QR: 1 Err: 000
+		out.writeByte(0x03); //MsgID = 0011
+		out.writeInt(0); //timeStamp
+		out.writeByte(1); //appCount = 1
+		out.writeShort(3);
+		out.writeByte(5);
+		out.writeBytes("app"); //two bytes short
+		out.flush();
+		
+		SPAMessage.decode(ByteBuffer.wrap(bytes.toByteArray()));
+	}
 
 }
@@ -0,0 +1,86 @@
+package SpRT.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * OutputStream that writes into a connection's ByteBuffer, growing it as needed.
+ * SpRTState recognizes it and encodes responses straight into the buffer,
+ * sparing the selector-based servers an intermediate byte array.
+ * Given a SpRTBufferPool, it takes its buffers from and returns them to that pool.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class ByteBufferOutputStream extends OutputStream {
+	private ByteBuffer buf; //Buffer being written to
+	private SpRTBufferPool pool; //Pool our buffers come from, null if allocated directly
+	
+	/**
+	 * @param buf buffer to write to, in write mode
+	 */
+	public ByteBufferOutputStream(ByteBuffer buf){
+		this.buf = buf;
+	}
+	
+	/**
+	 * @param pool pool to take buffers from
+	 * @param size initial capacity needed
+	 */
+	public ByteBufferOutputStream(SpRTBufferPool pool, int size){
+		this.pool = pool;
+		this.buf = pool.acquire(size);
+	}
+	
+	public ByteBuffer getBuffer(){
+		return this.buf;
+	}
+
+	/**
+	 * Starts writing into a new buffer, leaving the old one to the caller.
+	 * 
+	 * @param buf buffer to write to from now on, in write mode
+	 */
+	public void replaceBuffer(ByteBuffer buf){
+		this.buf = buf;
+	}
+
+	/**
+	 * Makes sure at least n more bytes can be written, replacing our buffer
+	 * with a larger copy if necessary.
+	 * 
+	 * @param n number of bytes about to be written
+	 */
+	public void ensureCapacity(int n){
+		if(buf.remaining() < n){
+			int size = Math.max(buf.capacity()*2, buf.position()+n);
+			ByteBuffer bigger = (pool != null) ? pool.acquire(size) : ByteBuffer.allocate(size);
+			buf.flip();
+			bigger.put(buf);
+			release();
+			buf = bigger;
+		}
+	}
+	
+	/**
+	 * Returns our buffer to its pool, if it came from one.
+	 * The stream must not be written to afterward.
+	 */
+	public void release(){
+		if(pool != null){
+			pool.release(buf);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureCapacity(1);
+		buf.put((byte) b);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureCapacity(len);
+		buf.put(b, off, len);
+	}
+}
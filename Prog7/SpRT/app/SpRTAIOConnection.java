@@ -0,0 +1,231 @@
+package SpRT.app;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import SPA.app.SPAServer;
+import SpRT.app.SpRTState.State;
+import SpRT.protocol.CookieList;
+import SpRT.protocol.SpRTException;
+import SpRT.protocol.SpRTRequest;
+import SpRT.protocol.SpRTResponse;
+
+/**
+ * A single client connection of SpRTServerAIO.
+ * Reading, framing, state transitions and writing are chained together
+ * through CompletionHandlers, so no thread ever waits on a connection;
+ * an idle connection is just an outstanding timed read.
+ * @author Corey Royse
+ * Assignment: Bonus Program 7
+ */
+public class SpRTAIOConnection {
+
+	private AsynchronousSocketChannel clientChan; //Channel to the client
+	private SpRTAttachment conn; //Buffers, framer and state of this connection
+	private Logger log; //Logger shared by the server
+	private SPAServer spaServ; //SPA server recording function invocations
+	private long timeout; //Seconds we allow a read or write to take
+	private long writeStart; //Time (nanoseconds) the outstanding write began
+	//It's hacky, but our existing transition design expects a socket to get an address from
+	//for logging purposes.
+	//we pass it a generic socket to pacify it for now.
+	private Socket logSocket;
+	//Log line for requests received; its parameters are only formatted
+	//by the log's writer, and only if the line is logged at all.
+	private final static String RECEIVEDLOG = "Received Request: {0}-{1,number,#} Received: {2}"
+			+ System.getProperty("line.separator");
+
+	//Handler invoked when a read completes - shared by every connection
+	private final static CompletionHandler<Integer, SpRTAIOConnection> READHANDLER =
+			new CompletionHandler<Integer, SpRTAIOConnection>(){
+				@Override
+				public void completed(Integer bytesRead, SpRTAIOConnection c) {
+					c.readCompleted(bytesRead);
+				}
+
+				@Override
+				public void failed(Throwable exc, SpRTAIOConnection c) {
+					c.failed(exc);
+				}
+	};
+
+	//Handler invoked when a write completes - shared by every connection
+	private final static CompletionHandler<Integer, SpRTAIOConnection> WRITEHANDLER =
+			new CompletionHandler<Integer, SpRTAIOConnection>(){
+				@Override
+				public void completed(Integer bytesWritten, SpRTAIOConnection c) {
+					c.writeCompleted();
+				}
+
+				@Override
+				public void failed(Throwable exc, SpRTAIOConnection c) {
+					c.failed(exc);
+				}
+	};
+
+	/**
+	 * @param clientChan channel to the client
+	 * @param bufSize size of the connection's buffers
+	 * @param timeout seconds we allow a read or write to take
+	 * @param log logger shared by the server
+	 * @param spaServ SPA server recording function invocations
+	 */
+	public SpRTAIOConnection(AsynchronousSocketChannel clientChan, int bufSize, long timeout,
+			Logger log, SPAServer spaServ){
+		this.clientChan = clientChan;
+		this.conn = new SpRTAttachment(bufSize, State.STARTSTATE);
+		this.timeout = timeout;
+		this.log = log;
+		this.spaServ = spaServ;
+		this.logSocket = new Socket();
+	}
+
+	/**
+	 * Begins servicing the client by waiting for its first request.
+	 */
+	public void start(){
+		SpRTMetrics.getRegistry().connectionOpened();
+		read();
+	}
+
+	/**
+	 * Starts a timed read into our read buffer.
+	 */
+	private void read(){
+		clientChan.read(conn.getBuf(), timeout, TimeUnit.SECONDS, this, READHANDLER);
+	}
+
+	/**
+	 * Starts a timed write of our queued responses.
+	 */
+	private void write(){
+		ByteBuffer out = conn.getOutBuf();
+		out.flip(); //prepare for writing
+		writeStart = System.nanoTime();
+		clientChan.write(out, timeout, TimeUnit.SECONDS, this, WRITEHANDLER);
+	}
+
+	/**
+	 * Frames and processes whatever has arrived, then decides what to do next.
+	 *
+	 * @param bytesRead number of bytes read, -1 at end of stream
+	 */
+	private void readCompleted(int bytesRead){
+		if(bytesRead == -1){
+			//Did the other end close?
+			close();
+			return;
+		}
+		processRequests();
+		next();
+	}
+
+	/**
+	 * Keeps writing until every queued response has been sent.
+	 */
+	private void writeCompleted(){
+		//Time from starting the write until the channel took it
+		SpRTMetrics.getRegistry().recordPhase(SpRTMetrics.Phase.WRITE, System.nanoTime() - writeStart);
+		ByteBuffer out = conn.getOutBuf();
+		//keep anything the channel didn't take for the next write.
+		out.compact();
+		next();
+	}
+
+	/**
+	 * Chooses the next operation: write queued responses, close a finished
+	 * connection, or wait for more requests.
+	 */
+	private void next(){
+		if(conn.getOutBuf().position() > 0){
+			write();
+		}
+		else if(conn.getState() == State.DONE){
+			close();
+		}
+		else{
+			read();
+		}
+	}
+
+	/**
+	 * Handles every complete request in our read buffer, in order,
+	 * queuing each response behind the ones before it.
+	 */
+	private void processRequests(){
+		State currState = conn.getState();
+		ByteBuffer buf = conn.getBuf();
+		try {
+			SpRTRequest req;
+			while(currState != State.DONE && (req = conn.nextRequest()) != null){
+				//Log message received.
+				if(log.isLoggable(Level.INFO)){
+					log.log(Level.INFO, RECEIVEDLOG, new Object[]{clientChan.getRemoteAddress(),
+							Thread.currentThread().getId(), req});
+				}
+				//Now, we process it and encode an appropriate
+				//SpRTResponse directly into our outbound buffer
+				currState = SpRTState.transition(currState, req, conn.getRequestLength(), conn.getOut(),
+						log, logSocket, spaServ, null);
+				conn.setState(currState);
+			}
+			//Keep any partial request for the next read.
+			conn.compactInput();
+			if(currState != State.DONE && !buf.hasRemaining()){
+				throw new SpRTException("Request exceeds " + buf.capacity() + " bytes");
+			}
+		} catch (SpRTException | IOException e) {
+			// If we encounter a SpRTException, we know that
+			// we found our delimiter, but these bytes did not produce
+			// a valid SpRTRequest. Handle it according to protocol.
+			conn.setState(State.DONE);
+			conn.clearInput();
+			String errorMessage = "Communication Problem: " + e.getMessage() + "***client terminated";
+			log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+			try {
+				CookieList c = new CookieList();
+				SpRTResponse resp = new SpRTResponse("ERROR", "NULL", errorMessage, c);
+				SpRTState.sendResponse(resp, log, logSocket, conn.getOut());
+			} catch (SpRTException e1) {
+				errorMessage = "Error responding to bad input: " + e.getMessage();
+				log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+			}
+		}
+	}
+
+	/**
+	 * Handles a failed or timed out read or write by dropping the client.
+	 *
+	 * @param exc cause of the failure
+	 */
+	private void failed(Throwable exc){
+		String reason = (exc instanceof InterruptedByTimeoutException) ? "Timed out" : exc.getMessage();
+		String errorMessage = "Communication Problem: " + reason + "***client terminated";
+		log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+		close();
+	}
+
+	/**
+	 * Closes the connection, logging any error.
+	 */
+	private void close(){
+		conn.setState(State.DONE);
+		if(clientChan.isOpen()){
+			//Only the first close of a connection counts
+			SpRTMetrics.getRegistry().connectionClosed();
+		}
+		try {
+			clientChan.close();
+		} catch (IOException e) {
+			String errorMessage = "Error closing connection: " + e.getMessage();
+			log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+		}
+	}
+}
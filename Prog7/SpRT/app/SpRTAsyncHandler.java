@@ -0,0 +1,183 @@
+package SpRT.app;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler that takes log records off the threads producing them.
+ * Records are appended to a bounded lock-free ring buffer, and a single
+ * background writer publishes them to a target handler in batches,
+ * flushing the target once per batch rather than once per record.
+ * When the buffer is full, records are either dropped and counted, the count
+ * being logged by the writer when it catches up, or the producer waits for room.
+ * Pair it with a StreamHandler rather than a FileHandler, which flushes every record.
+ * Messages are formatted by the target, on the writer's thread, so the logger
+ * should have no other handlers and not use its parent's.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTAsyncHandler extends Handler {
+
+	/**
+	 * What a producer does when the ring buffer is full
+	 */
+	public enum Overflow {
+		DROP, //Discard the record and count it
+		BLOCK //Wait until the writer frees room
+	}
+
+	private final static int BATCHSIZE = 256; //Most records published between flushes
+	private final static long IDLENANOS = 100000000L; //Longest the writer sleeps before checking for records
+	private final static long BLOCKNANOS = 100000L; //How long a blocked producer waits before retrying
+
+	private final Handler target; //Handler the writer publishes to
+	private final SpRTRingBuffer<LogRecord> ring; //Records waiting for the writer
+	private final Overflow overflow; //What to do when ring is full
+	private final LongAdder dropped = new LongAdder(); //Records discarded because ring was full
+	private final Thread writer; //Background thread draining ring
+	private volatile boolean writerWaiting; //true while the writer is parked waiting for records
+	private volatile boolean closed; //true once close has been called
+
+	/**
+	 * @param target handler to publish records to from the background writer
+	 * @param capacity most records waiting at once, rounded up to a power of two
+	 * @param overflow what to do with a record when capacity records are already waiting
+	 */
+	public SpRTAsyncHandler(Handler target, int capacity, Overflow overflow){
+		this.target = target;
+		this.ring = new SpRTRingBuffer<>(capacity);
+		this.overflow = overflow;
+		this.writer = new Thread("SpRTLogWriter"){
+			public void run(){
+				write();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a record for the writer. Never touches the disk.
+	 *
+	 * @see java.util.logging.Handler#publish(java.util.logging.LogRecord)
+	 */
+	@Override
+	public void publish(LogRecord record){
+		if(closed || !isLoggable(record)){
+			return;
+		}
+		//The caller is found by walking the stack, so it must be done here
+		//rather than on the writer's thread.
+		record.getSourceClassName();
+		while(!ring.offer(record)){
+			if(overflow == Overflow.DROP || closed){
+				dropped.increment();
+				return;
+			}
+			wakeWriter();
+			LockSupport.parkNanos(BLOCKNANOS);
+		}
+		wakeWriter();
+	}
+
+	/**
+	 * Waits until every record queued so far has been published, then flushes the target.
+	 *
+	 * @see java.util.logging.Handler#flush()
+	 */
+	@Override
+	public void flush(){
+		while(!ring.isEmpty() && writer.isAlive()){
+			wakeWriter();
+			LockSupport.parkNanos(BLOCKNANOS);
+		}
+		target.flush();
+	}
+
+	/**
+	 * Publishes every queued record, stops the writer and closes the target.
+	 *
+	 * @see java.util.logging.Handler#close()
+	 */
+	@Override
+	public void close() throws SecurityException{
+		closed = true;
+		LockSupport.unpark(writer);
+		try{
+			writer.join();
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		target.close();
+	}
+
+	/**
+	 * @return number of records dropped because the buffer was full
+	 */
+	public long getDropped(){
+		return dropped.sum();
+	}
+
+	/**
+	 * @return number of records waiting for the writer
+	 */
+	public int getQueueDepth(){
+		return ring.size();
+	}
+
+	/**
+	 * Unparks the writer if it is waiting for records.
+	 */
+	private void wakeWriter(){
+		if(writerWaiting){
+			writerWaiting = false;
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writer loop: publishes records in batches until closed and drained.
+	 */
+	private void write(){
+		ArrayList<LogRecord> batch = new ArrayList<>(BATCHSIZE);
+		long reported = 0; //Drops already logged
+		while(true){
+			if(ring.drainTo(batch, BATCHSIZE) == 0){
+				if(closed && ring.isEmpty()){
+					return;
+				}
+				//Announce we are waiting, then look again so a record
+				//offered in between is not left waiting for IDLENANOS.
+				writerWaiting = true;
+				if(ring.isEmpty() && !closed){
+					LockSupport.parkNanos(IDLENANOS);
+				}
+				writerWaiting = false;
+				continue;
+			}
+			long drops = dropped.sum();
+			if(drops != reported){
+				LogRecord warning = new LogRecord(Level.WARNING, "Log buffer full: " + (drops - reported)
+						+ " record(s) dropped" + System.getProperty("line.separator"));
+				warning.setSourceClassName(SpRTAsyncHandler.class.getName());
+				warning.setSourceMethodName("write");
+				target.publish(warning);
+				reported = drops;
+			}
+			for(LogRecord record : batch){
+				try{
+					target.publish(record);
+				} catch(RuntimeException e){
+					reportError("Error publishing log record", e, ErrorManager.WRITE_FAILURE);
+				}
+			}
+			batch.clear();
+			target.flush();
+		}
+	}
+}
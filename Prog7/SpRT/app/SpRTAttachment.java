@@ -1,25 +1,59 @@
 package SpRT.app;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import SpRT.app.SpRTState.State;
+import SpRT.protocol.SpRTException;
+import SpRT.protocol.SpRTRequest;
 
 /**
- * Class containing a byte buffer and a State enum, meant to be attached to each connection.
+ * Class containing a read buffer, an outbound response buffer, a State enum
+ * and a framer, meant to be attached to each connection.
+ * Responses encoded into the outbound buffer can be moved onto a write queue,
+ * which is drained across as many writes as the socket needs while the
+ * outbound buffer takes the next responses.
+ * Buffers taken from a SpRTBufferPool start small, grow as messages need
+ * and go back to the pool when the connection is released.
  * @author Corey Royse
  * Assignment: Program 6
  */
 public class SpRTAttachment {
 	private ByteBuffer buf; //Buffer associated with client
-	private State state; //State of connection
-	
+	private volatile State state; //State of connection
+	private SpRTFramer framer; //Framer remembering how much of buf has been scanned
+	private int readPos; //Index in buf of the first byte not yet decoded
+	private int requestLength; //Number of bytes the last request was framed from
+	private ByteBufferOutputStream out; //Responses waiting to be written, in order
+	private ArrayDeque<ByteBuffer> writeQueue; //Encoded responses queued for the socket, in read mode
+	private int queuedBytes; //Bytes in writeQueue not yet written
+	private SpRTSerialExecutor executor; //Runs this connection's requests in order off the selector thread, if set
+	private final AtomicInteger pendingTasks = new AtomicInteger(); //Requests handed to executor and not yet begun
+	private SpRTBufferPool pool; //Pool our buffers come from, null if allocated directly
+	private int maxSize; //Largest the read buffer may grow to
+	private boolean released; //true once our buffers have gone back to the pool
+	private long deadline; //Time (milliseconds) at which the connection times out
+	private long msgDeadline; //Time by which the partially received request must complete, 0 if none
+	private SelectionKey key; //Key of the connection, used to close it when it times out
+	//Links maintained by the SpRTTimingWheel tracking our deadline
+	SpRTAttachment wheelPrev, wheelNext;
+	int wheelSlot = -1; //Slot we occupy, -1 if not scheduled
+	long wheelTick; //Tick of the slot we occupy
+
 	/**
 	 * Default constructor
 	 */
 	public SpRTAttachment(){
 		buf = ByteBuffer.allocate(0);
 		state = State.STARTSTATE;
+		framer = new SpRTFramer();
+		out = new ByteBufferOutputStream(ByteBuffer.allocate(0));
+		writeQueue = new ArrayDeque<>();
 	}
-	
+
 	/**
 	 * @param bufSize size of ByteBuffer
 	 * @param state	Initial State
@@ -27,17 +61,290 @@ public class SpRTAttachment {
 	public SpRTAttachment(int bufSize, State state){
 		buf = ByteBuffer.allocate(bufSize);
 		this.state = state;
+		framer = new SpRTFramer();
+		out = new ByteBufferOutputStream(ByteBuffer.allocate(bufSize));
+		writeQueue = new ArrayDeque<>();
+		maxSize = bufSize;
 	}
-	
+
+	/**
+	 * @param pool pool to take buffers from
+	 * @param maxSize largest a single request may be, in bytes
+	 * @param state Initial State
+	 */
+	public SpRTAttachment(SpRTBufferPool pool, int maxSize, State state){
+		this.pool = pool;
+		this.maxSize = maxSize;
+		this.state = state;
+		buf = pool.acquire(pool.minSize());
+		framer = new SpRTFramer();
+		out = new ByteBufferOutputStream(pool, pool.minSize());
+		writeQueue = new ArrayDeque<>();
+	}
+
 	public ByteBuffer getBuf(){
 		return this.buf;
 	}
-	
+
 	public State getState(){
 		return this.state;
 	}
-	
+
 	public void setState(State s){
 		this.state = s;
 	}
+
+	public SpRTFramer getFramer(){
+		return this.framer;
+	}
+
+	/**
+	 * @return stream that queues encoded responses for this connection
+	 */
+	public ByteBufferOutputStream getOut(){
+		return this.out;
+	}
+
+	/**
+	 * Counts a request handed to our executor.
+	 */
+	public void taskQueued(){
+		pendingTasks.incrementAndGet();
+	}
+
+	/**
+	 * Counts a request taken up by a worker.
+	 */
+	public void taskStarted(){
+		pendingTasks.decrementAndGet();
+	}
+
+	/**
+	 * @return number of requests handed to our executor and not yet begun
+	 */
+	public int getPendingTasks(){
+		return pendingTasks.get();
+	}
+
+	/**
+	 * @return buffer holding encoded responses, in write mode
+	 */
+	public ByteBuffer getOutBuf(){
+		return this.out.getBuffer();
+	}
+
+	/**
+	 * Moves every response encoded into the outbound buffer onto the write queue,
+	 * giving the outbound stream a fresh buffer for the next responses.
+	 */
+	public void queueOutput(){
+		ByteBuffer encoded = out.getBuffer();
+		if(encoded.position() == 0){
+			return;
+		}
+		encoded.flip();
+		queuedBytes += encoded.remaining();
+		writeQueue.add(encoded);
+		out.replaceBuffer((pool != null) ? pool.acquire(pool.minSize()) : ByteBuffer.allocate(encoded.capacity()));
+	}
+
+	/**
+	 * Writes as much of the write queue as the channel will take,
+	 * freeing each buffer once it has been completely sent.
+	 *
+	 * @param chan channel to write to
+	 * @throws IOException if the write fails
+	 */
+	public void writeQueued(WritableByteChannel chan) throws IOException{
+		ByteBuffer head;
+		while((head = writeQueue.peek()) != null){
+			queuedBytes -= chan.write(head);
+			if(head.hasRemaining()){
+				return; //Socket is full; wait for the next OP_WRITE
+			}
+			writeQueue.poll();
+			if(pool != null){
+				pool.release(head);
+			}
+		}
+	}
+
+	/**
+	 * @return true if responses are waiting on the write queue
+	 */
+	public boolean hasQueuedOutput(){
+		return !writeQueue.isEmpty();
+	}
+
+	/**
+	 * @return number of queued response bytes not yet written
+	 */
+	public int getQueuedBytes(){
+		return this.queuedBytes;
+	}
+
+	/**
+	 * @return executor handling this connection's requests, or null to handle them on the selector thread
+	 */
+	public SpRTSerialExecutor getExecutor(){
+		return this.executor;
+	}
+	
+	public void setExecutor(SpRTSerialExecutor executor){
+		this.executor = executor;
+	}
+
+	/**
+	 * Decodes the next complete request waiting in the read buffer.
+	 * Any bytes following it stay in the buffer for the next call.
+	 *
+	 * @return the next request, or null if no complete request has arrived yet
+	 * @throws SpRTException if a framed message is not a valid request
+	 */
+	public SpRTRequest nextRequest() throws SpRTException{
+		SpRTMetrics metrics = SpRTMetrics.getRegistry();
+		long start = System.nanoTime();
+		int filled = buf.position();
+		int msgIndex = framer.frameMsg(buf, filled);
+		long framed = System.nanoTime();
+		metrics.recordPhase(SpRTMetrics.Phase.FRAME, framed - start);
+		if(msgIndex == -1){
+			return null;
+		}
+		//Decode the framed bytes in place, then put the buffer back in write mode.
+		requestLength = msgIndex+1 - readPos;
+		buf.limit(msgIndex+1);
+		buf.position(readPos);
+		try{
+			return SpRTRequest.decode(buf);
+		} finally{
+			readPos = msgIndex+1;
+			buf.limit(buf.capacity());
+			buf.position(filled);
+			metrics.recordPhase(SpRTMetrics.Phase.DECODE, System.nanoTime() - framed);
+		}
+	}
+
+	/**
+	 * @return number of bytes the request last returned by nextRequest was framed from
+	 */
+	public int getRequestLength(){
+		return requestLength;
+	}
+
+	/**
+	 * Moves any partially received request to the front of the read buffer,
+	 * making room for the next read.
+	 */
+	public void compactInput(){
+		if(readPos > 0){
+			buf.flip();
+			buf.position(readPos);
+			buf.compact();
+			framer.shift(readPos);
+			readPos = 0;
+		}
+	}
+
+	/**
+	 * Trades a full read buffer for a larger one from the pool, keeping its contents.
+	 * Must be called with the buffer in write mode, after compactInput.
+	 *
+	 * @return true if the buffer grew, false if it has already reached the largest allowed size
+	 */
+	public boolean growInput(){
+		if(pool == null || buf.capacity() >= maxSize){
+			return false;
+		}
+		ByteBuffer bigger = pool.acquire(buf.capacity()+1);
+		buf.flip();
+		bigger.put(buf);
+		pool.release(buf);
+		buf = bigger;
+		return true;
+	}
+
+	/**
+	 * @return largest a single request may be, in bytes
+	 */
+	public int getMaxSize(){
+		return this.maxSize;
+	}
+
+	/**
+	 * Returns our buffers to the pool once the connection is closed.
+	 * Holds the outbound stream's lock so a worker cannot append a response
+	 * to a buffer that has already been handed to another connection.
+	 */
+	public void release(){
+		synchronized(out){
+			if(released || pool == null){
+				return;
+			}
+			released = true;
+			state = State.DONE;
+			pool.release(buf);
+			out.release();
+			ByteBuffer queued;
+			while((queued = writeQueue.poll()) != null){
+				pool.release(queued);
+			}
+			queuedBytes = 0;
+		}
+	}
+
+	/**
+	 * @return true if our buffers have gone back to the pool;
+	 * callers must hold the outbound stream's lock
+	 */
+	public boolean isReleased(){
+		return this.released;
+	}
+
+	/**
+	 * Records activity on the connection, moving its deadline.
+	 * A connection waiting for its next request gets idleTime from now, but a
+	 * partially received request must complete within msgTime of its first
+	 * bytes, however slowly the rest trickles in.
+	 *
+	 * @param now current time in milliseconds
+	 * @param idleTime milliseconds a connection may sit idle
+	 * @param msgTime milliseconds a request may take to arrive
+	 */
+	public void touch(long now, long idleTime, long msgTime){
+		if(buf.position() == 0){
+			msgDeadline = 0;
+			deadline = now + idleTime;
+		}
+		else{
+			if(msgDeadline == 0){
+				msgDeadline = now + msgTime;
+			}
+			deadline = msgDeadline;
+		}
+	}
+
+	/**
+	 * @return time (milliseconds) at which the connection times out
+	 */
+	public long getDeadline(){
+		return this.deadline;
+	}
+
+	public SelectionKey getKey(){
+		return this.key;
+	}
+
+	public void setKey(SelectionKey key){
+		this.key = key;
+	}
+
+	/**
+	 * Discards everything in the read buffer.
+	 */
+	public void clearInput(){
+		buf.clear();
+		framer.reset();
+		readPos = 0;
+	}
 }
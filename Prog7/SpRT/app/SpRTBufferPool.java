@@ -0,0 +1,105 @@
+package SpRT.app;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of ByteBuffers in a few fixed size classes, shared by every connection.
+ * Connections start with the smallest buffer and trade it for the next class
+ * up only when a message needs the room, returning their buffers when they close.
+ * Safe for use by multiple threads.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTBufferPool {
+
+	//Capacities of our size classes, smallest first
+	private final static int[] SIZES = {256, 1024, 4096, 16384};
+	private final static int MAXPOOLED = 1024; //Most idle buffers kept per size class
+
+	private final boolean direct; //true to allocate direct (off-heap) buffers
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free; //Idle buffers of each size class
+	private final AtomicInteger[] freeCount; //Number of idle buffers of each size class
+
+	/**
+	 * @param direct true to allocate direct (off-heap) buffers, false for heap buffers
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public SpRTBufferPool(boolean direct){
+		this.direct = direct;
+		this.free = new ConcurrentLinkedQueue[SIZES.length];
+		this.freeCount = new AtomicInteger[SIZES.length];
+		for(int i = 0; i < SIZES.length; i++){
+			free[i] = new ConcurrentLinkedQueue<>();
+			freeCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @return capacity of the smallest buffer we hand out
+	 */
+	public int minSize(){
+		return SIZES[0];
+	}
+
+	/**
+	 * Takes a cleared buffer holding at least size bytes from the pool,
+	 * allocating one if none is idle. Requests larger than our biggest
+	 * size class get an exactly sized buffer that is never pooled.
+	 *
+	 * @param size minimum capacity needed
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer acquire(int size){
+		int sizeClass = sizeClass(size);
+		if(sizeClass == -1){
+			return allocate(size);
+		}
+		ByteBuffer buf = free[sizeClass].poll();
+		if(buf == null){
+			return allocate(SIZES[sizeClass]);
+		}
+		freeCount[sizeClass].decrementAndGet();
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not touch it afterward.
+	 *
+	 * @param buf buffer obtained from acquire
+	 */
+	public void release(ByteBuffer buf){
+		int sizeClass = sizeClass(buf.capacity());
+		if(sizeClass == -1 || SIZES[sizeClass] != buf.capacity() || buf.isDirect() != direct){
+			return; //Not one of ours, leave it to the garbage collector
+		}
+		if(freeCount[sizeClass].incrementAndGet() > MAXPOOLED){
+			freeCount[sizeClass].decrementAndGet();
+			return;
+		}
+		buf.clear();
+		free[sizeClass].offer(buf);
+	}
+
+	/**
+	 * @param size capacity needed
+	 * @return index of the smallest size class holding size bytes, -1 if none does
+	 */
+	private static int sizeClass(int size){
+		for(int i = 0; i < SIZES.length; i++){
+			if(size <= SIZES[i]){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param size capacity of the new buffer
+	 * @return newly allocated buffer of the kind this pool hands out
+	 */
+	private ByteBuffer allocate(int size){
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+}
@@ -0,0 +1,86 @@
+package SpRT.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental framer that searches a connection's read buffer for the
+ * pair of CRLFs delimiting the end of a SpRT Message.
+ * The framer remembers how far it has scanned and its CR/LF state between
+ * reads, so each readable event only costs work proportional to the new bytes.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTFramer {
+	private int scanPos; //Index of the next byte to be examined
+	private boolean cr; //true if the last byte examined was an unmatched '\r'
+	private boolean crlf; //true if we have just seen a complete CRLF
+
+	/**
+	 * Default constructor
+	 */
+	public SpRTFramer(){
+		reset();
+	}
+
+	/**
+	 * Parse the bytes of the given buffer that have not yet been examined
+	 * in search of a pair of '\r\n's delimiting the end of a SpRT Message
+	 *
+	 * @param buf buffer holding received bytes
+	 * @param limit index one past the last received byte
+	 * @return -1 if no message is found, index of end of delimiter otherwise
+	 */
+	public int frameMsg(ByteBuffer buf, int limit){
+		while(scanPos < limit){
+			int index = scanPos++;
+			byte b = buf.get(index);
+			if(b == '\r'){
+				if(!cr){
+					cr = true;
+				}
+				else if(crlf){
+					crlf = false;
+				}
+			}
+			else if (b == '\n'){
+				if(cr){
+					if(!crlf){
+						crlf = true;
+						cr = false;
+					}
+					else{
+						//Found our delimiter - the next message starts after it.
+						cr = false;
+						crlf = false;
+						return index;
+					}
+				}
+			}
+			else{
+				cr = false;
+				crlf = false;
+			}
+		}
+		//if we fail to find our delimiter, we return -1.
+		return -1;
+	}
+
+	/**
+	 * Adjusts our scan position after the first n bytes of the buffer
+	 * have been consumed and the remainder compacted to the front.
+	 * 
+	 * @param n number of bytes removed from the front of the buffer
+	 */
+	public void shift(int n){
+		scanPos -= n;
+	}
+
+	/**
+	 * Forget all scanning progress, for use when the buffer is cleared.
+	 */
+	public void reset(){
+		scanPos = 0;
+		cr = false;
+		crlf = false;
+	}
+}
@@ -0,0 +1,216 @@
+package SpRT.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of non-negative values, such as latencies
+ * in nanoseconds. Each power of two is split into SUBBUCKETS equal buckets,
+ * so a value is known to within 1/SUBBUCKETS of itself while the whole
+ * range of a long fits in under a thousand buckets.
+ * Recording is a few atomic increments. Taking an interval snapshot swaps in
+ * a fresh set of counts, then waits only for recordings already in progress
+ * on the old set to finish, so recorders never wait on the reader.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTHistogram {
+
+	private final static int SUBBITS = 4; //log2 of SUBBUCKETS
+	private final static int SUBBUCKETS = 1 << SUBBITS; //Buckets per power of two
+	//Buckets needed to cover every non-negative long
+	private final static int NUMBUCKETS = (64 - SUBBITS) * SUBBUCKETS;
+
+	/**
+	 * One set of counts, recorded into until swapped out by a snapshot
+	 */
+	private static class Counts {
+		final AtomicLongArray buckets = new AtomicLongArray(NUMBUCKETS); //Values recorded in each bucket
+		final AtomicLong count = new AtomicLong(); //Values recorded
+		final AtomicLong sum = new AtomicLong(); //Sum of the values recorded
+		final AtomicLong max = new AtomicLong(); //Largest value recorded
+
+		void add(long value){
+			buckets.getAndIncrement(bucketOf(value));
+			count.getAndIncrement();
+			sum.getAndAdd(value);
+			long m;
+			while(value > (m = max.get()) && !max.compareAndSet(m, value)){
+				//Lost a race with a larger value; look again
+			}
+		}
+
+		void reset(){
+			for(int i = 0; i < NUMBUCKETS; i++){
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+
+	private volatile Counts active = new Counts(); //Counts being recorded into
+	private Counts spare = new Counts(); //Counts swapped out by the last snapshot, reused by the next
+	private volatile long intervalStart = System.currentTimeMillis(); //Time (milliseconds) active started
+	//Phase tracking, so a snapshot knows when recordings into the old counts are done.
+	//startEpoch counts recordings begun; its sign says which phase they belong to.
+	//evenEnd and oddEnd count recordings finished in each phase, from the same base.
+	private final AtomicLong startEpoch = new AtomicLong(0);
+	private final AtomicLong evenEnd = new AtomicLong(0);
+	private final AtomicLong oddEnd = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value value to record
+	 */
+	public void record(long value){
+		long epoch = startEpoch.getAndIncrement();
+		try{
+			active.add(Math.max(0, value));
+		} finally{
+			(epoch < 0 ? oddEnd : evenEnd).getAndIncrement();
+		}
+	}
+
+	/**
+	 * Takes the counts recorded since the last interval snapshot and starts a new interval.
+	 * Only one snapshot is taken at a time; recorders carry on throughout.
+	 *
+	 * @return what was recorded during the interval
+	 */
+	public synchronized Snapshot intervalSnapshot(){
+		Counts old = active;
+		spare.reset();
+		active = spare;
+		//Flip phase, then wait for recordings begun in the old phase to end
+		boolean nextEven = startEpoch.get() < 0;
+		long nextStart = nextEven ? 0 : Long.MIN_VALUE;
+		(nextEven ? evenEnd : oddEnd).set(nextStart);
+		long startedAtFlip = startEpoch.getAndSet(nextStart);
+		AtomicLong oldEnd = nextEven ? oddEnd : evenEnd;
+		while(oldEnd.get() != startedAtFlip){
+			Thread.yield();
+		}
+		long now = System.currentTimeMillis();
+		Snapshot snap = new Snapshot(old, now - intervalStart);
+		intervalStart = now;
+		spare = old;
+		return snap;
+	}
+
+	/**
+	 * Reads the counts recorded so far in the current interval, without ending it.
+	 * Recordings in progress may or may not be included, so the figures can
+	 * disagree with each other by a few values.
+	 *
+	 * @return what has been recorded since the last interval snapshot
+	 */
+	public Snapshot currentSnapshot(){
+		long start = intervalStart;
+		Counts counts = active;
+		return new Snapshot(counts, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @param value value recorded
+	 * @return index of the bucket holding value
+	 */
+	static int bucketOf(long value){
+		if(value < SUBBUCKETS){
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value); //Position of the highest set bit
+		return (exp - SUBBITS + 1) * SUBBUCKETS + (int) ((value >>> (exp - SUBBITS)) & (SUBBUCKETS - 1));
+	}
+
+	/**
+	 * @param bucket index of a bucket
+	 * @return smallest value held by the bucket
+	 */
+	static long lowestOf(int bucket){
+		if(bucket < SUBBUCKETS){
+			return bucket;
+		}
+		int exp = bucket / SUBBUCKETS + SUBBITS - 1;
+		return (long) (SUBBUCKETS + bucket % SUBBUCKETS) << (exp - SUBBITS);
+	}
+
+	/**
+	 * @param bucket index of a bucket
+	 * @return largest value held by the bucket
+	 */
+	static long highestOf(int bucket){
+		return (bucket == NUMBUCKETS - 1) ? Long.MAX_VALUE : lowestOf(bucket + 1) - 1;
+	}
+
+	/**
+	 * Immutable copy of the counts recorded over an interval
+	 */
+	public static class Snapshot {
+		private final long[] buckets; //Values in each bucket
+		private final long count; //Values recorded
+		private final long sum; //Sum of the values recorded
+		private final long max; //Largest value recorded
+		private final long intervalMillis; //Length of the interval
+
+		private Snapshot(Counts counts, long intervalMillis){
+			buckets = new long[NUMBUCKETS];
+			for(int i = 0; i < NUMBUCKETS; i++){
+				buckets[i] = counts.buckets.get(i);
+			}
+			count = counts.count.get();
+			sum = counts.sum.get();
+			max = counts.max.get();
+			this.intervalMillis = intervalMillis;
+		}
+
+		/**
+		 * @return number of values recorded
+		 */
+		public long getCount(){
+			return count;
+		}
+
+		/**
+		 * @return largest value recorded, 0 if none
+		 */
+		public long getMax(){
+			return max;
+		}
+
+		/**
+		 * @return mean of the values recorded, 0 if none
+		 */
+		public double getMean(){
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @return values recorded per second over the interval
+		 */
+		public double getRate(){
+			return (intervalMillis <= 0) ? 0 : count * 1000.0 / intervalMillis;
+		}
+
+		/**
+		 * @param percentile percentile wanted, 0 to 100
+		 * @return upper bound of the bucket holding that percentile, at most the max; 0 if none recorded
+		 */
+		public long getPercentile(double percentile){
+			if(count == 0){
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+			long seen = 0;
+			for(int i = 0; i < NUMBUCKETS; i++){
+				seen += buckets[i];
+				if(seen >= rank){
+					return Math.min(highestOf(i), max);
+				}
+			}
+			return max;
+		}
+	}
+}
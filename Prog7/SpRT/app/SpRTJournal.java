@@ -0,0 +1,275 @@
+package SpRT.app;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import SPA.app.SPAJournal;
+
+/**
+ * Append-only binary journal of SpRT and SPA traffic, one fixed-size record
+ * per request answered, kept in a rolling set of memory-mapped segment files.
+ * Appending claims the next record in the current segment by bumping an
+ * atomic offset, then writes the fields straight into the mapped region;
+ * the operating system gets them to disk. A full segment is replaced by a new
+ * one, and the oldest segment is deleted once there are more than we keep.
+ * Safe for use by multiple threads. SpRTJournalReader converts segments to text.
+ * A SPAServer records its messages here through the SPAJournal interface.
+ *
+ * Segment layout: a HEADERSIZE byte header (MAGIC, RECORDSIZE, creation time)
+ * followed by records of RECORDSIZE bytes:
+ *   0 timestamp (long, milliseconds since 1970), written last; 0 marks unused space
+ *   8 peer address (16 bytes, IPv4 addresses mapped into IPv6)
+ *  24 peer port (unsigned short)
+ *  26 kind (byte, SPRT or SPA)
+ *  27 status (byte)
+ *  28 function ID (short, index into FUNCTIONS)
+ *  32 latency (int, microseconds)
+ *  36 bytes received (int)
+ *  40 bytes sent (int)
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTJournal implements SPAJournal {
+
+	public final static int MAGIC = 0x53504A31; //"SPJ1"
+	public final static int HEADERSIZE = 16; //Bytes before the first record of a segment
+	public final static int RECORDSIZE = 48; //Bytes per record
+	public final static byte SPRT = 1; //Kind of a SpRT request
+	public final static byte SPA = 2; //Kind of a SPA message
+	public final static byte STATUSOK = 0; //SpRT request answered OK
+	public final static byte STATUSERROR = 1; //SpRT request answered ERROR
+	public final static byte STATUSNONE = 2; //SpRT request that got no response
+	//Names of the functions we record, indexed by function ID; 0 is any other
+	public final static String[] FUNCTIONS = {"Other", "Poll", "Hello", "NameStep", "FoodStep", "SPAQuery",
+			"SPAMetricsQuery"};
+	public final static short SPAQUERY = 5; //Function ID of a SPA message
+	public final static short SPAMETRICS = 6; //Function ID of a SPA metrics query
+	private final static String PREFIX = "journal-"; //Start of each segment's file name
+	private final static String SUFFIX = ".seg"; //End of each segment's file name
+
+	private final Path dir; //Directory holding our segments
+	private final int segmentSize; //Size of each segment file, in bytes
+	private final int maxSegments; //Most segments kept before the oldest is deleted
+	private final Logger log; //Logger for trouble with our files
+	private volatile Segment current; //Segment being appended to
+	private volatile boolean failed; //true once we could not open a segment; appends are then dropped
+
+	/**
+	 * A mapped segment file and the offset of its next free record
+	 */
+	private static class Segment {
+		final int index; //Number of the segment, used in its file name
+		final MappedByteBuffer buf; //The whole mapped file
+		final AtomicInteger next = new AtomicInteger(HEADERSIZE); //Offset of the next record to claim
+
+		Segment(int index, MappedByteBuffer buf){
+			this.index = index;
+			this.buf = buf;
+		}
+	}
+
+	/**
+	 * Opens a journal, starting a new segment after any already in the directory.
+	 *
+	 * @param dir directory to keep segments in, created if missing
+	 * @param segmentSize size of each segment file, in bytes
+	 * @param maxSegments most segments kept before the oldest is deleted
+	 * @param log logger for trouble with our files
+	 * @throws IOException if the first segment cannot be created
+	 */
+	public SpRTJournal(Path dir, int segmentSize, int maxSegments, Logger log) throws IOException{
+		this.dir = dir;
+		this.segmentSize = Math.max(segmentSize, HEADERSIZE + RECORDSIZE);
+		this.maxSegments = Math.max(1, maxSegments);
+		this.log = log;
+		Files.createDirectories(dir);
+		this.current = open(lastIndex() + 1);
+		//Segments left by earlier runs count against our limit too
+		deleteBefore(current.index + 1 - this.maxSegments);
+	}
+
+	/**
+	 * @param function name of a SpRT function
+	 * @return ID recorded for the function
+	 */
+	public static short functionId(String function){
+		for(short i = 1; i < SPAQUERY; i++){
+			if(FUNCTIONS[i].equals(function)){
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Appends a record. Never blocks on disk; if the journal has failed, does nothing.
+	 *
+	 * @param peer address of the client, null if unknown
+	 * @param port port of the client
+	 * @param kind SPRT or SPA
+	 * @param status outcome: a STATUS constant for SpRT, the reply's error code for SPA
+	 * @param function function ID
+	 * @param latencyNanos time taken to answer, in nanoseconds
+	 * @param bytesIn length of the request
+	 * @param bytesOut length of the response
+	 */
+	public void record(InetAddress peer, int port, byte kind, int status, short function,
+			long latencyNanos, int bytesIn, int bytesOut){
+		while(!failed){
+			Segment seg = current;
+			int off = seg.next.getAndAdd(RECORDSIZE);
+			if(off <= seg.buf.capacity() - RECORDSIZE){
+				write(seg.buf, off, peer, port, kind, status, function, latencyNanos, bytesIn, bytesOut);
+				return;
+			}
+			roll(seg);
+		}
+	}
+
+	/**
+	 * Appends a record of a SPA message.
+	 *
+	 * @see SPA.app.SPAJournal#recordMessage(InetAddress, int, int, boolean, long, int, int)
+	 */
+	@Override
+	public void recordMessage(InetAddress source, int port, int status, boolean metricsQuery,
+			long latencyNanos, int bytesIn, int bytesOut){
+		record(source, port, SPA, status, metricsQuery ? SPAMETRICS : SPAQUERY, latencyNanos, bytesIn, bytesOut);
+	}
+
+	/**
+	 * Fills in a claimed record, timestamp last.
+	 */
+	private static void write(MappedByteBuffer buf, int off, InetAddress peer, int port, byte kind,
+			int status, short function, long latencyNanos, int bytesIn, int bytesOut){
+		if(peer != null){
+			byte[] addr = peer.getAddress();
+			if(addr.length == 4){
+				//IPv4-mapped IPv6: ten zero bytes, two 0xFF bytes, then the address
+				buf.putShort(off+18, (short) 0xFFFF);
+				buf.put(off+20, addr[0]).put(off+21, addr[1]).put(off+22, addr[2]).put(off+23, addr[3]);
+			}
+			else{
+				for(int i = 0; i < 16; i++){
+					buf.put(off+8+i, addr[i]);
+				}
+			}
+		}
+		buf.putShort(off+24, (short) port);
+		buf.put(off+26, kind);
+		buf.put(off+27, (byte) status);
+		buf.putShort(off+28, function);
+		buf.putInt(off+32, (int) Math.min(latencyNanos / 1000, Integer.MAX_VALUE));
+		buf.putInt(off+36, bytesIn);
+		buf.putInt(off+40, bytesOut);
+		buf.putLong(off, System.currentTimeMillis());
+	}
+
+	/**
+	 * Replaces a full segment with a new one, unless another thread already has.
+	 *
+	 * @param full segment found to be full
+	 */
+	private synchronized void roll(Segment full){
+		if(current != full || failed){
+			return;
+		}
+		try{
+			current = open(full.index + 1);
+			int expired = full.index + 1 - maxSegments;
+			if(expired >= 0){
+				Files.deleteIfExists(segmentPath(expired));
+			}
+		} catch(IOException e){
+			failed = true;
+			log.log(Level.WARNING, "Journal stopped: " + e.getMessage() + System.getProperty("line.separator"));
+		}
+	}
+
+	/**
+	 * Creates, maps and writes the header of a segment file.
+	 *
+	 * @param index number of the segment
+	 * @return the mapped segment
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	private Segment open(int index) throws IOException{
+		try(FileChannel chan = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			//The mapping stays valid once the channel is closed
+			MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			buf.putInt(0, MAGIC);
+			buf.putInt(4, RECORDSIZE);
+			buf.putLong(8, System.currentTimeMillis());
+			return new Segment(index, buf);
+		}
+	}
+
+	/**
+	 * @return highest segment number already in our directory, -1 if none
+	 * @throws IOException if the directory cannot be read
+	 */
+	private int lastIndex() throws IOException{
+		int last = -1;
+		try(DirectoryStream<Path> segments = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)){
+			for(Path p : segments){
+				last = Math.max(last, indexOf(p));
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Deletes every segment in our directory numbered below first.
+	 *
+	 * @param first number of the oldest segment to keep
+	 * @throws IOException if the directory cannot be read or a segment deleted
+	 */
+	private void deleteBefore(int first) throws IOException{
+		try(DirectoryStream<Path> segments = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)){
+			for(Path p : segments){
+				int index = indexOf(p);
+				if(index >= 0 && index < first){
+					Files.deleteIfExists(p);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param segment path of a file matching our segment names
+	 * @return number of the segment, -1 if the name is not one of ours
+	 */
+	private static int indexOf(Path segment){
+		String name = segment.getFileName().toString();
+		try{
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch(NumberFormatException e){
+			return -1; //Not one of ours
+		}
+	}
+
+	/**
+	 * @param index number of a segment
+	 * @return path of its file
+	 */
+	private Path segmentPath(int index){
+		return dir.resolve(String.format("%s%06d%s", PREFIX, index, SUFFIX));
+	}
+
+	/**
+	 * Forces the current segment's records to disk.
+	 */
+	public void force(){
+		current.buf.force();
+	}
+}
@@ -0,0 +1,121 @@
+package SpRT.app;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Offline tool printing the records of SpRTJournal segments as text or CSV.
+ * Usage: SpRTJournalReader [-csv] segment...
+ * Segments are read in the order given, skipping records whose timestamp was never written.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTJournalReader {
+
+	private final static String CSVFLAG = "-csv"; //Argument selecting CSV output
+	private final static String CSVHEADER = "timestamp,kind,address,port,function,status,latencyMicros,bytesIn,bytesOut";
+
+	/**
+	 * @param args optional "-csv", then the segment files to read
+	 */
+	public static void main(String[] args){
+		boolean csv = args.length > 0 && CSVFLAG.equals(args[0]);
+		int first = csv ? 1 : 0;
+		if(args.length == first){
+			System.err.println("Usage: SpRTJournalReader [-csv] segment...");
+			System.exit(1);
+		}
+		if(csv){
+			System.out.println(CSVHEADER);
+		}
+		for(int i = first; i < args.length; i++){
+			try{
+				print(Paths.get(args[i]), csv, System.out);
+			} catch(IOException e){
+				System.err.println("Unable to read " + args[i] + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Prints every record of a segment.
+	 *
+	 * @param segment segment file
+	 * @param csv true for CSV, false for text
+	 * @param out stream to print to
+	 * @throws IOException if the file cannot be read or is not a segment
+	 */
+	public static void print(Path segment, boolean csv, PrintStream out) throws IOException{
+		ByteBuffer buf;
+		try(FileChannel chan = FileChannel.open(segment, StandardOpenOption.READ)){
+			buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+		}
+		if(buf.capacity() < SpRTJournal.HEADERSIZE || buf.getInt(0) != SpRTJournal.MAGIC){
+			throw new IOException("Not a journal segment");
+		}
+		int recordSize = buf.getInt(4);
+		if(recordSize < SpRTJournal.RECORDSIZE){
+			throw new IOException("Bad record size " + recordSize);
+		}
+		byte[] addr = new byte[16];
+		for(int off = SpRTJournal.HEADERSIZE; off <= buf.capacity() - recordSize; off += recordSize){
+			long timestamp = buf.getLong(off);
+			if(timestamp == 0){
+				//Unused, or claimed by an append that had not finished;
+				//records after it may still be complete.
+				continue;
+			}
+			for(int i = 0; i < addr.length; i++){
+				addr[i] = buf.get(off+8+i);
+			}
+			int port = buf.getShort(off+24) & 0xFFFF;
+			byte kind = buf.get(off+26);
+			int status = buf.get(off+27) & 0xFF;
+			int function = buf.getShort(off+28);
+			int latency = buf.getInt(off+32);
+			int bytesIn = buf.getInt(off+36);
+			int bytesOut = buf.getInt(off+40);
+
+			String kindName = (kind == SpRTJournal.SPA) ? "SPA" : "SpRT";
+			String functionName = (function >= 0 && function < SpRTJournal.FUNCTIONS.length)
+					? SpRTJournal.FUNCTIONS[function] : SpRTJournal.FUNCTIONS[0];
+			String statusName = statusName(kind, status);
+			String address = InetAddress.getByAddress(addr).getHostAddress();
+			if(csv){
+				out.println(Instant.ofEpochMilli(timestamp) + "," + kindName + "," + address + "," + port
+						+ "," + functionName + "," + statusName + "," + latency + "," + bytesIn + "," + bytesOut);
+			}
+			else{
+				out.println(Instant.ofEpochMilli(timestamp) + " " + kindName + " " + address + ":" + port
+						+ " " + functionName + " " + statusName + " " + latency + "us in=" + bytesIn
+						+ " out=" + bytesOut);
+			}
+		}
+	}
+
+	/**
+	 * @param kind kind of record
+	 * @param status recorded status
+	 * @return readable status: OK, ERROR or NONE for SpRT, the error code for SPA
+	 */
+	private static String statusName(byte kind, int status){
+		if(kind == SpRTJournal.SPA){
+			return Integer.toString(status);
+		}
+		switch(status){
+			case SpRTJournal.STATUSOK:
+				return "OK";
+			case SpRTJournal.STATUSERROR:
+				return "ERROR";
+			default:
+				return "NONE";
+		}
+	}
+}
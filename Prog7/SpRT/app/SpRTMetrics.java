@@ -0,0 +1,264 @@
+package SpRT.app;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import SPA.app.SPAMetricsSource;
+
+/**
+ * Registry of the latency histograms and throughput counters fed by every
+ * SpRT server variant: time taken by each step of handling a request, time
+ * taken by transition for each function, and bytes received and sent.
+ * It also keeps the gauges read by SPA metrics queries, which reach it as a
+ * SPAMetricsSource: open connections, selector loop lag and the depth of the log's queue.
+ * One registry is shared by the whole process, in the manner of Logger.getLogger;
+ * recording is lock-free, and a reporter thread periodically logs and resets
+ * an interval's worth of figures without holding up the threads recording them.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTMetrics implements SPAMetricsSource {
+
+	/**
+	 * Steps of handling a request, each timed separately
+	 */
+	public enum Phase {
+		FRAME, //Finding the end of a request in the read buffer
+		DECODE, //Decoding the framed bytes into a request
+		TRANSITION, //Processing the request, including encoding and logging its response
+		ENCODE, //Encoding a response
+		WRITE //Writing responses to the socket
+	}
+
+	//Functions with histograms of their own, in report order; any other is counted under OTHER
+	private final static String[] FUNCTIONS = {"Poll", "NameStep", "FoodStep", "Hello"};
+	private final static String OTHER = "Other";
+	private final static String LINESEP = System.getProperty("line.separator");
+
+	private final static SpRTMetrics REGISTRY = new SpRTMetrics(); //The process's registry
+
+	private final SpRTHistogram[] phases; //Nanoseconds spent in each phase, indexed by ordinal
+	private final SpRTHistogram[] functions; //Nanoseconds transition spent on each function, OTHER last
+	private final LongAdder bytesIn = new LongAdder(); //Request bytes handled
+	private final LongAdder bytesOut = new LongAdder(); //Response bytes sent
+	private final SpRTHistogram loopLag = new SpRTHistogram(); //Nanoseconds each selector pass spent off select
+	private final LongAdder openConnections = new LongAdder(); //Client connections currently open
+	private volatile SpRTAsyncHandler logQueue; //Handler whose queue depth we report, or null
+	private Thread reporter; //Thread logging our figures, null until started
+
+	private SpRTMetrics(){
+		phases = new SpRTHistogram[Phase.values().length];
+		for(int i = 0; i < phases.length; i++){
+			phases[i] = new SpRTHistogram();
+		}
+		functions = new SpRTHistogram[FUNCTIONS.length + 1];
+		for(int i = 0; i < functions.length; i++){
+			functions[i] = new SpRTHistogram();
+		}
+	}
+
+	/**
+	 * @return the registry shared by the process
+	 */
+	public static SpRTMetrics getRegistry(){
+		return REGISTRY;
+	}
+
+	/**
+	 * Records time spent in a phase.
+	 *
+	 * @param phase phase timed
+	 * @param nanos nanoseconds it took
+	 */
+	public void recordPhase(Phase phase, long nanos){
+		phases[phase.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Records a request handled by transition.
+	 *
+	 * @param function the request's function
+	 * @param nanos nanoseconds transition took
+	 * @param in length of the request in bytes
+	 * @param out length of the response in bytes, 0 if none was sent
+	 */
+	public void recordRequest(String function, long nanos, int in, int out){
+		functions[functionIndex(function)].record(nanos);
+		bytesIn.add(in);
+		bytesOut.add(out);
+	}
+
+	/**
+	 * Records one pass of a selector loop: the time from select returning to the
+	 * loop being ready to select again, which delays any event arriving meanwhile.
+	 *
+	 * @param nanos nanoseconds the pass took
+	 */
+	public void recordLoopLag(long nanos){
+		loopLag.record(nanos);
+	}
+
+	/**
+	 * Counts a client connection opened.
+	 */
+	public void connectionOpened(){
+		openConnections.increment();
+	}
+
+	/**
+	 * Counts a client connection closed. Must be called once per connection opened.
+	 */
+	public void connectionClosed(){
+		openConnections.decrement();
+	}
+
+	/**
+	 * @return number of client connections open
+	 */
+	@Override
+	public long getOpenConnections(){
+		return openConnections.sum();
+	}
+
+	/**
+	 * @param handler handler whose queue depth getLogQueueDepth reports
+	 */
+	public void setLogQueue(SpRTAsyncHandler handler){
+		logQueue = handler;
+	}
+
+	/**
+	 * @return number of log records waiting to be written, 0 if no handler was set
+	 */
+	@Override
+	public int getLogQueueDepth(){
+		SpRTAsyncHandler handler = logQueue;
+		return (handler == null) ? 0 : handler.getQueueDepth();
+	}
+
+	/**
+	 * @see SPA.app.SPAMetricsSource#getFunctionNames()
+	 */
+	@Override
+	public String[] getFunctionNames(){
+		String[] names = Arrays.copyOf(FUNCTIONS, FUNCTIONS.length + 1);
+		names[FUNCTIONS.length] = OTHER;
+		return names;
+	}
+
+	/**
+	 * Sums every function's rate for the interval so far, without resetting it.
+	 *
+	 * @see SPA.app.SPAMetricsSource#getRequestRate()
+	 */
+	@Override
+	public double getRequestRate(){
+		double rate = 0;
+		for(SpRTHistogram function : functions){
+			rate += function.currentSnapshot().getRate();
+		}
+		return rate;
+	}
+
+	/**
+	 * Reads each function's figures for the interval so far, without resetting them.
+	 *
+	 * @see SPA.app.SPAMetricsSource#getFunctionPercentiles(double...)
+	 */
+	@Override
+	public long[][] getFunctionPercentiles(double... percentiles){
+		long[][] latencies = new long[functions.length][percentiles.length];
+		for(int i = 0; i < functions.length; i++){
+			SpRTHistogram.Snapshot snap = functions[i].currentSnapshot();
+			for(int p = 0; p < percentiles.length; p++){
+				latencies[i][p] = snap.getPercentile(percentiles[p]);
+			}
+		}
+		return latencies;
+	}
+
+	/**
+	 * @return longest selector loop lag of the interval so far, without resetting it
+	 */
+	@Override
+	public long getLoopLag(){
+		return loopLag.currentSnapshot().getMax();
+	}
+
+	/**
+	 * @param function name of a function
+	 * @return index of its histogram in functions
+	 */
+	private static int functionIndex(String function){
+		for(int i = 0; i < FUNCTIONS.length; i++){
+			if(FUNCTIONS[i].equals(function)){
+				return i;
+			}
+		}
+		return FUNCTIONS.length;
+	}
+
+	/**
+	 * Takes and resets an interval's worth of figures, formatted one histogram to a line:
+	 * rate per second, then mean, 50th, 99th and 99.9th percentile and max in microseconds.
+	 *
+	 * @return report of the interval
+	 */
+	public synchronized String intervalReport(){
+		StringBuilder report = new StringBuilder("Metrics:").append(LINESEP);
+		for(Phase phase : Phase.values()){
+			appendLine(report, "phase " + phase, phases[phase.ordinal()].intervalSnapshot());
+		}
+		for(int i = 0; i < functions.length; i++){
+			String name = (i < FUNCTIONS.length) ? FUNCTIONS[i] : OTHER;
+			appendLine(report, "function " + name, functions[i].intervalSnapshot());
+		}
+		appendLine(report, "selector loop", loopLag.intervalSnapshot());
+		report.append("connections open=").append(getOpenConnections())
+		      .append(" log queue=").append(getLogQueueDepth()).append(LINESEP);
+		report.append("bytes in=").append(bytesIn.sumThenReset())
+		      .append(" out=").append(bytesOut.sumThenReset()).append(LINESEP);
+		return report.toString();
+	}
+
+	/**
+	 * Appends one histogram's line to a report.
+	 */
+	private static void appendLine(StringBuilder report, String name, SpRTHistogram.Snapshot snap){
+		report.append(name).append(": n=").append(snap.getCount())
+		      .append(String.format(" rate=%.1f/s mean=%.1fus", snap.getRate(), snap.getMean() / 1000))
+		      .append(" p50=").append(snap.getPercentile(50) / 1000)
+		      .append("us p99=").append(snap.getPercentile(99) / 1000)
+		      .append("us p99.9=").append(snap.getPercentile(99.9) / 1000)
+		      .append("us max=").append(snap.getMax() / 1000).append("us").append(LINESEP);
+	}
+
+	/**
+	 * Starts a daemon thread logging and resetting our figures every period.
+	 * Does nothing if one is already running.
+	 *
+	 * @param log logger to report to
+	 * @param periodMillis time between reports
+	 */
+	public synchronized void startReporting(final Logger log, final long periodMillis){
+		if(reporter != null){
+			return;
+		}
+		reporter = new Thread("SpRTMetricsReporter"){
+			public void run(){
+				while(true){
+					try{
+						Thread.sleep(periodMillis);
+					} catch(InterruptedException e){
+						return;
+					}
+					log.log(Level.INFO, intervalReport());
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+}
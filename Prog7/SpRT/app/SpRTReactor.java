@@ -0,0 +1,193 @@
+package SpRT.app;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import SPA.app.SPAServer;
+
+/**
+ * Worker event loop for SpRTServerSIO. Each reactor owns a Selector and
+ * services the connections handed to it by the accepting thread, so a
+ * connection's attachment is only ever touched by one thread.
+ * Each pass of the loop also closes connections that have sat idle, or taken
+ * too long to send a request, as tracked by a timing wheel, and records
+ * how long it kept the loop from selecting again.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTReactor implements Runnable {
+	
+	private Selector selector; //Selector multiplexing this reactor's connections
+	private TCPProtocol protocol; //Protocol handling I/O on each connection
+	private Logger log; //Logger shared by the server
+	private SPAServer spaServ; //SPA server recording function invocations
+	private int timeout; //Wait timeout (milliseconds)
+	private long idleTime; //Milliseconds a connection may wait between requests
+	private long msgTime; //Milliseconds a request may take to arrive once begun
+	private SpRTTimingWheel wheel; //Deadlines of our connections
+	private ArrayList<SpRTAttachment> expired; //Connections found timed out on this pass
+	private SpRTMetrics metrics; //Registry recording how long each pass takes
+	private final static int WHEELSLOTS = 512; //Slots in our timing wheel
+	//Connections accepted by the boss thread, waiting to be registered with our selector
+	private ConcurrentLinkedQueue<SocketChannel> pending;
+	
+	/**
+	 * @param protocol protocol handling I/O on each connection
+	 * @param log logger shared by the server
+	 * @param spaServ SPA server recording function invocations
+	 * @param timeout select timeout in milliseconds, also the precision of our deadlines
+	 * @param idleTime milliseconds a connection may wait between requests
+	 * @param msgTime milliseconds a request may take to arrive once begun
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public SpRTReactor(TCPProtocol protocol, Logger log, SPAServer spaServ, int timeout,
+			long idleTime, long msgTime) throws IOException{
+		this.selector = Selector.open();
+		this.protocol = protocol;
+		this.log = log;
+		this.spaServ = spaServ;
+		this.timeout = timeout;
+		this.idleTime = idleTime;
+		this.msgTime = msgTime;
+		this.wheel = new SpRTTimingWheel(WHEELSLOTS, timeout, System.currentTimeMillis());
+		this.expired = new ArrayList<>();
+		this.metrics = SpRTMetrics.getRegistry();
+		this.pending = new ConcurrentLinkedQueue<>();
+	}
+	
+	/**
+	 * Hands a newly accepted connection to this reactor.
+	 * Safe to call from any thread.
+	 * 
+	 * @param clntChan accepted connection
+	 */
+	public void addChannel(SocketChannel clntChan){
+		pending.add(clntChan);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Registers any connections handed to us since the last pass.
+	 */
+	private void registerPending(){
+		SocketChannel clntChan;
+		while((clntChan = pending.poll()) != null){
+			try {
+				protocol.handleRegister(clntChan, selector);
+				SelectionKey key = clntChan.keyFor(selector);
+				SpRTAttachment attachment = (SpRTAttachment) key.attachment();
+				attachment.setKey(key);
+				attachment.touch(System.currentTimeMillis(), idleTime, msgTime);
+				wheel.schedule(attachment);
+			} catch (IOException e) {
+				String errorMessage = "Unable to register connection: " + e.getMessage();
+				log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+				close(clntChan);
+			}
+		}
+	}
+	
+	/**
+	 * Closes a connection, logging any error.
+	 * @param clntChan connection being closed
+	 */
+	private void close(SocketChannel clntChan){
+		try {
+			clntChan.close();
+		} catch (IOException e) {
+			String errorMessage = "Error closing connection: " + e.getMessage();
+			log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+		}
+	}
+	
+	/**
+	 * Closes a registered connection through our protocol, so it can free
+	 * the connection's resources, logging any error.
+	 * @param key key of the connection being closed
+	 */
+	private void close(SelectionKey key){
+		try {
+			protocol.handleClose(key);
+		} catch (IOException e) {
+			String errorMessage = "Error closing connection: " + e.getMessage();
+			log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+		}
+	}
+	
+	/**
+	 * Closes every connection whose deadline has passed.
+	 */
+	private void expireConnections(){
+		wheel.expire(System.currentTimeMillis(), expired);
+		if(expired.isEmpty()){
+			return;
+		}
+		for(SpRTAttachment attachment : expired){
+			close(attachment.getKey());
+		}
+		String errorMessage = "Communication Problem: Timed out***" + expired.size() + " client(s) terminated";
+		log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+		expired.clear();
+	}
+	
+	@Override
+	public void run(){
+		while(true){ //Run forever, processing IO as it becomes available
+			try {
+				//Wait for some channel to be ready (or else timeout)
+				int ready = selector.select(timeout);
+				long woke = System.nanoTime(); //Start of this pass's work, for our loop lag
+				registerPending();
+				expireConnections();
+				if(ready == 0){
+					metrics.recordLoopLag(System.nanoTime() - woke);
+					continue; //If no channels are ready, we iterate the loop again.
+				}
+				long now = System.currentTimeMillis();
+				//Get iterator on set of keys with I/O waiting to be processed
+				Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
+				while(keyIter.hasNext()){
+					SelectionKey key = keyIter.next(); //this is a bit mask
+					keyIter.remove(); //remove from set of selected keys
+					try {
+						if(key.isReadable()){
+							//Client channel has pending data
+							protocol.handleRead(key,log,spaServ);
+						}
+						if(key.isValid() && key.isWritable()){
+							//Client channel is available for writing and 
+							//key is valid (the channel is not closed)
+							protocol.handleWrite(key);
+						}
+						//Activity moves the deadline
+						SpRTAttachment attachment = (SpRTAttachment) key.attachment();
+						if(key.isValid()){
+							attachment.touch(now, idleTime, msgTime);
+							wheel.schedule(attachment);
+						}
+						else{
+							wheel.remove(attachment);
+						}
+					} catch (IOException e) {
+						//A failure on one connection must not stop the others.
+						String errorMessage = "Communication Problem: " + e.getMessage() + "***client terminated";
+						log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+						close(key);
+						wheel.remove((SpRTAttachment) key.attachment());
+					}
+				}
+				metrics.recordLoopLag(System.nanoTime() - woke);
+			} catch (IOException e) {
+				String errorMessage = "Selector error: " + e.getMessage();
+				log.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+			}
+		}
+	}
+}
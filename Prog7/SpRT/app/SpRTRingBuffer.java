@@ -0,0 +1,116 @@
+package SpRT.app;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of many producers and a single consumer.
+ * Producers claim a slot by advancing the tail with a compare-and-set, then
+ * publish their element by bumping that slot's sequence number; the consumer
+ * takes elements in order as their sequence numbers say they are ready.
+ * No producer ever waits on another, and a full buffer is reported rather
+ * than waited out, leaving the caller to decide what to do.
+ * @param <E> type of element queued
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTRingBuffer<E> {
+
+	private final AtomicReferenceArray<E> slots; //Elements, indexed by position & mask
+	//Sequence number of each slot: equal to the position a producer may next claim it for,
+	//one past that once the element is published, and capacity past that once it is taken.
+	private final AtomicLongArray sequence;
+	private final int mask; //capacity - 1, capacity being a power of two
+	private final AtomicLong tail = new AtomicLong(); //Next position producers will claim
+	private volatile long head; //Next position the consumer will take
+
+	/**
+	 * @param capacity most elements held at once, rounded up to a power of two
+	 */
+	public SpRTRingBuffer(int capacity){
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.sequence = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++){
+			sequence.set(i, i);
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @return most elements held at once
+	 */
+	public int capacity(){
+		return mask + 1;
+	}
+
+	/**
+	 * Appends an element. Safe to call from any number of threads at once.
+	 *
+	 * @param e element to append
+	 * @return true if appended, false if the buffer is full
+	 */
+	public boolean offer(E e){
+		while(true){
+			long pos = tail.get();
+			int slot = (int) (pos & mask);
+			long diff = sequence.get(slot) - pos;
+			if(diff == 0){
+				if(tail.compareAndSet(pos, pos+1)){
+					slots.lazySet(slot, e);
+					sequence.set(slot, pos+1); //publish to the consumer
+					return true;
+				}
+			}
+			else if(diff < 0){
+				return false; //Slot still holds the element from one lap ago
+			}
+			//Otherwise another producer claimed pos first; try the next
+		}
+	}
+
+	/**
+	 * Moves up to max ready elements, oldest first, onto a list.
+	 * Must only be called by the single consumer thread.
+	 *
+	 * @param batch list to add the elements to
+	 * @param max most elements to take
+	 * @return number of elements taken
+	 */
+	public int drainTo(List<E> batch, int max){
+		long pos = head;
+		int taken = 0;
+		while(taken < max){
+			int slot = (int) (pos & mask);
+			if(sequence.get(slot) != pos+1){
+				break; //Not yet published
+			}
+			batch.add(slots.get(slot));
+			slots.lazySet(slot, null);
+			sequence.set(slot, pos+mask+1); //free the slot for the next lap
+			pos++;
+			taken++;
+		}
+		head = pos;
+		return taken;
+	}
+
+	/**
+	 * @return true if every element appended so far has been taken;
+	 * may be stale by the time it returns if producers are active
+	 */
+	public boolean isEmpty(){
+		return head == tail.get();
+	}
+
+	/**
+	 * @return number of elements appended but not yet taken, including any
+	 * still being published; may be stale by the time it returns if producers are active
+	 */
+	public int size(){
+		long h = head; //Read first, so the tail read after it is never behind
+		return (int) Math.max(0, tail.get() - h);
+	}
+}
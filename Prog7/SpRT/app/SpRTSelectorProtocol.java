@@ -1,12 +1,12 @@
 package SpRT.app;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,172 +20,362 @@ import SpRT.app.SpRTState.State;
 /**
  * Protocol that implements the TCP protocol for our Selector-based
  * SpRT Server
+ * Requests are either handled on the selector thread or, when a worker pool
+ * is given, handed to that pool in per-connection order so that the selector
+ * thread only performs I/O.
  * @author Corey Royse
  * Assignment: Program 6
  */
 public class SpRTSelectorProtocol implements TCPProtocol {
 	
-	private int bufSize; // Size of I/O Buffer
-	
+	private int bufSize; // Largest request we accept, in bytes
+	private SpRTBufferPool pool; // Pool every connection's buffers come from
+	private Executor workers; // Pool handling requests off the selector thread, null to handle them inline
+	private SpRTJournal journal; // Journal recording every request, or null
+	private final static int MAXQUEUED = 64 * 1024; // Queued response bytes beyond which we stop reading
+	private final static int MAXPENDING = 64; // Requests awaiting a worker beyond which we stop reading
 	
+	//Scratch stream each worker encodes its responses into before handing them to the selector
+	private final static ThreadLocal<ByteBufferOutputStream> SCRATCH = new ThreadLocal<ByteBufferOutputStream>(){
+		@Override
+		protected ByteBufferOutputStream initialValue(){
+			return new ByteBufferOutputStream(ByteBuffer.allocate(512));
+		}
+	};
 	
 	/**
 	 * Constructor for our protocol
 	 * 
-	 * @param bufSize desired buffer size
+	 * @param bufSize largest request we accept, in bytes
 	 */
 	public SpRTSelectorProtocol(int bufSize){
+		this(bufSize, new SpRTBufferPool(false), null);
+	}
+	
+	/**
+	 * Constructor for a protocol that handles requests on a worker pool
+	 * 
+	 * @param bufSize largest request we accept, in bytes
+	 * @param pool pool every connection's buffers come from
+	 * @param workers pool to handle requests on, or null to handle them on the selector thread
+	 */
+	public SpRTSelectorProtocol(int bufSize, SpRTBufferPool pool, Executor workers){
+		this(bufSize, pool, workers, null);
+	}
+	
+	/**
+	 * Constructor for a protocol that records every request in a journal
+	 * 
+	 * @param bufSize largest request we accept, in bytes
+	 * @param pool pool every connection's buffers come from
+	 * @param workers pool to handle requests on, or null to handle them on the selector thread
+	 * @param journal journal to record requests in, or null
+	 */
+	public SpRTSelectorProtocol(int bufSize, SpRTBufferPool pool, Executor workers, SpRTJournal journal){
 		this.bufSize = bufSize;
+		this.pool = pool;
+		this.workers = workers;
+		this.journal = journal;
 	}
 	
 
 	@Override
 	public void handleAccept(SelectionKey key) throws IOException {
 		SocketChannel clntChan = ((ServerSocketChannel)key.channel()).accept();
+		if(clntChan != null){
+			handleRegister(clntChan, key.selector());
+		}
+	}
+	
+	@Override
+	public void handleRegister(SocketChannel clntChan, Selector selector) throws IOException {
 		clntChan.configureBlocking(false); //Must be nonblocking to register
 		// Register the selector with new channel for read and attach byte buffer and state
-		SpRTAttachment attachment = new SpRTAttachment(bufSize, State.STARTSTATE);
-		clntChan.register(key.selector(), SelectionKey.OP_READ, attachment);
+		SpRTAttachment attachment = new SpRTAttachment(pool, bufSize, State.STARTSTATE);
+		if(workers != null){
+			attachment.setExecutor(new SpRTSerialExecutor(workers));
+		}
+		clntChan.register(selector, SelectionKey.OP_READ, attachment);
+		SpRTMetrics.getRegistry().connectionOpened();
+	}
+	
+	@Override
+	public void handleRead(SelectionKey key, Logger l, SPAServer spaServ) throws IOException {
+		//Client socket channel has pending data
+		SocketChannel clntChan = (SocketChannel) key.channel();
+		SpRTAttachment attachment = (SpRTAttachment)key.attachment();
+		ByteBuffer buf = attachment.getBuf();
+		long bytesRead = clntChan.read(buf);
+		if(bytesRead == -1){
+			//Did the other end close?
+			handleClose(key);
+		}
+		else if(attachment.getExecutor() != null){
+			dispatchRequests(key, attachment, l, spaServ);
+		}
+		else{
+			handleRequests(key, attachment, l, spaServ);
+		}
 	}
 	
 	/**
-	 * parse the given bytes 
-	 * in search of a pair of '/r/n's delimiting the end of a SpRT Message
+	 * Handles every complete request that has arrived on the selector thread.
 	 * 
-	 * @param message bytes to be checked for a message
-	 * @return -1 if no message is found, index of end of delimiter otherwise
+	 * @param key key of the connection
+	 * @param attachment connection's attachment
+	 * @param l logger
+	 * @param spaServ SPA server recording invocations
+	 * @throws IOException in event of error closing the connection
 	 */
-	public int frameMsg(byte[] message, int limit){
-		boolean messageFound = false;
-		boolean cr = false;
-		boolean crlf = false;
-		int index = 0;
-		
-		while(index < limit){
-			byte b = message[index];
-			if(b == '\r'){
-				if(!cr){
-					cr = true;
-				}
-				else if(crlf){
-					crlf = false;
-				}
+	private void handleRequests(SelectionKey key, SpRTAttachment attachment, Logger l, SPAServer spaServ) throws IOException{
+		SocketChannel clntChan = (SocketChannel) key.channel();
+		State currState = attachment.getState();
+		try {
+			//Handle every complete request that has arrived, in order.
+			//Each response is queued behind the ones before it.
+			SpRTRequest req;
+			while(currState != State.DONE && (req = attachment.nextRequest()) != null){
+				logRequest(clntChan, req, l);
+				//Now, we process it and encode an appropriate
+				//SpRTResponse directly into our outbound buffer
+				currState = SpRTState.transition(currState, req, attachment.getRequestLength(), attachment.getOut(),
+						l, clntChan.socket(), spaServ, journal);
+				attachment.setState(currState);
 			}
-			else if (b == '\n'){
-				if(cr){
-					if(!crlf){
-						crlf = true;
-						cr = false;
+			//Keep any partial request for the next read.
+			attachment.compactInput();
+			if(currState != State.DONE && !attachment.getBuf().hasRemaining() && !attachment.growInput()){
+				throw new SpRTException("Request exceeds " + attachment.getMaxSize() + " bytes");
+			}
+		} catch (SpRTException e) {
+			attachment.clearInput();
+			sendError(e, clntChan, attachment.getOut(), l);
+			attachment.setState(State.DONE);
+		}
+		attachment.queueOutput();
+		if(attachment.hasQueuedOutput()){
+			//Try the write now; most responses fit in the socket's send buffer.
+			handleWrite(key);
+		}
+		else if(attachment.getState() == State.DONE){
+			handleClose(key);
+		}
+	}
+	
+	/**
+	 * Decodes every complete request that has arrived and hands each to the
+	 * connection's serial executor, leaving the selector thread free for I/O.
+	 * 
+	 * @param key key of the connection
+	 * @param attachment connection's attachment
+	 * @param l logger
+	 * @param spaServ SPA server recording invocations
+	 */
+	private void dispatchRequests(final SelectionKey key, final SpRTAttachment attachment, 
+			final Logger l, final SPAServer spaServ){
+		SpRTSerialExecutor executor = attachment.getExecutor();
+		try {
+			SpRTRequest req;
+			while((req = attachment.nextRequest()) != null){
+				final SpRTRequest next = req;
+				final int length = attachment.getRequestLength();
+				attachment.taskQueued();
+				executor.execute(new Runnable(){
+					public void run(){
+						respond(key, attachment, next, length, null, l, spaServ);
 					}
-					else{
-						messageFound = true;
-						return index;
+				});
+			}
+			//Keep any partial request for the next read.
+			attachment.compactInput();
+			if(!attachment.getBuf().hasRemaining() && !attachment.growInput()){
+				throw new SpRTException("Request exceeds " + attachment.getMaxSize() + " bytes");
+			}
+			if(attachment.getPendingTasks() >= MAXPENDING){
+				//Stop reading until the workers catch up; the last of them to start resumes it.
+				synchronized(attachment.getOut()){
+					if(key.isValid()){
+						updateInterest(key, attachment);
 					}
 				}
 			}
-			else{
-				if(cr){
-					cr = false;
-				}
-				if(crlf){
-					crlf = false;
+		} catch (final SpRTException e) {
+			attachment.clearInput();
+			//Stop reading; the error response is queued behind any earlier responses.
+			//Leave any write interest alone, or a response already queued would wait for the timeout.
+			synchronized(attachment.getOut()){
+				if(key.isValid()){
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
 				}
 			}
-			index++;
-		}
-		if(!messageFound || index > limit){
-			//if we fail to find our delimiter, we return -1.
-			index = -1;
+			attachment.taskQueued();
+			executor.execute(new Runnable(){
+				public void run(){
+					respond(key, attachment, null, 0, e, l, spaServ);
+				}
+			});
 		}
-		return index;
 	}
 	
-	@Override
-	public void handleRead(SelectionKey key, Logger l, SPAServer spaServ) throws IOException {
-		//Client socket channel has pending data
-		SocketChannel clntChan = (SocketChannel) key.channel();
-		SpRTAttachment attachment = (SpRTAttachment)key.attachment();
-		ByteBuffer buf = attachment.getBuf();
+	/**
+	 * Runs on a worker thread: processes one request (or reports one decoding
+	 * error), then hands the encoded response to the selector for writing.
+	 * 
+	 * @param key key of the connection
+	 * @param attachment connection's attachment
+	 * @param req request to process, or null if reporting an error
+	 * @param reqLength number of bytes req was framed from
+	 * @param error decoding error to report, or null
+	 * @param l logger
+	 * @param spaServ SPA server recording invocations
+	 */
+	private void respond(SelectionKey key, SpRTAttachment attachment, SpRTRequest req, int reqLength,
+			SpRTException error, Logger l, SPAServer spaServ){
+		attachment.taskStarted();
 		State currState = attachment.getState();
-		long bytesRead = clntChan.read(buf);
-		if(bytesRead == -1){
-			//Did the other end close?
-			clntChan.close();
-			currState = State.DONE;
+		if(currState == State.DONE || !key.isValid()){
+			//Connection is finished; later requests are ignored, but the
+			//response that finished it may still need writing.
+			synchronized(attachment.getOut()){
+				if(!attachment.isReleased() && key.isValid() && attachment.hasQueuedOutput()){
+					updateInterest(key, attachment);
+					key.selector().wakeup();
+				}
+			}
+			return;
+		}
+		SocketChannel clntChan = (SocketChannel) key.channel();
+		ByteBufferOutputStream scratch = SCRATCH.get();
+		scratch.getBuffer().clear();
+		if(req != null){
+			logRequest(clntChan, req, l);
+			currState = SpRTState.transition(currState, req, reqLength, scratch, l, clntChan.socket(), spaServ, journal);
 		}
 		else{
-			//Frame message - see if we have a complete request yet.
-			int msgIndex = frameMsg(buf.array(), buf.position());
-			try {
-				if(msgIndex != -1){
-					//If we have a request, we construct and log it 
-					byte[] msg = new byte[msgIndex+1];
-					buf.flip(); //prepare to write
-					buf.get(msg, 0, msgIndex+1);
-					buf.clear();
-					ByteArrayInputStream bytes = new ByteArrayInputStream(msg);
-					SpRTRequest req = new SpRTRequest(bytes);
-					//Message posted to log
-					String msgLog = "Received Request: " + clntChan.socket().getInetAddress() + ":" 
-					+ clntChan.socket().getPort() + "-" + Thread.currentThread().getId() + " Received: " + req;
-					//Log message received.
-					l.log(Level.INFO, msgLog + System.getProperty("line.separator"));
-					//Now, we process it and generate an appropriate
-					//SpRTResponse. We then make room in our buffer 
-					//and encode our response into it to write out to the client
-					ByteArrayOutputStream out = new ByteArrayOutputStream();
-					currState = SpRTState.transition(currState, req, out, l, clntChan.socket(), spaServ);
-					attachment.setState(currState);
-					buf.put(out.toByteArray());
-					//Now we indicate via key that we want to write.
-					key.interestOps(SelectionKey.OP_WRITE);
-				}
-				//If we don't have a framed response we do nothing and keep waiting.
-			} catch (SpRTException e) {
-				// If we encounter a SpRTException, we know that
-				// we found our delimiter, but these bytes did not produce
-				// a valid SpRTRequest. Handle it according to protocol.
-				String errorMessage = "Communication Problem: " + e.getMessage() + "***client terminated";
-				l.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
-				try {
-					CookieList c = new CookieList();
-					SpRTResponse resp = new SpRTResponse("ERROR", "NULL", errorMessage, c);
-					ByteArrayOutputStream out = new ByteArrayOutputStream();
-					resp.encode(out);
-					buf.put(out.toByteArray());
-				} catch (SpRTException e1) {
-					errorMessage = "Error responding to bad input: " + e.getMessage();
-					l.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
-				}
-				attachment.setState(State.DONE);
+			sendError(error, clntChan, scratch, l);
+			currState = State.DONE;
+		}
+		ByteBufferOutputStream out = attachment.getOut();
+		//The selector thread drains out under this same lock, so the response,
+		//new state and write interest all become visible to it together.
+		synchronized(out){
+			if(attachment.isReleased()){
+				//Connection closed while we worked; its buffers belong to someone else now.
+				return;
+			}
+			ByteBuffer encoded = scratch.getBuffer();
+			out.ensureCapacity(encoded.position());
+			encoded.flip();
+			attachment.getOutBuf().put(encoded);
+			attachment.queueOutput();
+			attachment.setState(currState);
+			if(key.isValid()){
+				updateInterest(key, attachment);
+				key.selector().wakeup();
 			}
 		}
 	}
+	
+	/**
+	 * Logs a received request.
+	 * 
+	 * @param clntChan channel the request arrived on
+	 * @param req request received
+	 * @param l logger
+	 */
+	private void logRequest(SocketChannel clntChan, SpRTRequest req, Logger l){
+		//Log message received.
+		SpRTState.logRequest(req, l, clntChan.socket().getInetAddress(), clntChan.socket().getPort());
+	}
+	
+	/**
+	 * Queues an error response for a request that could not be decoded.
+	 * 
+	 * @param e decoding error
+	 * @param clntChan channel of the client
+	 * @param out stream to encode the response to
+	 * @param l logger
+	 */
+	private void sendError(SpRTException e, SocketChannel clntChan, ByteBufferOutputStream out, Logger l){
+		// If we encounter a SpRTException, we know that
+		// we found our delimiter, but these bytes did not produce
+		// a valid SpRTRequest. Handle it according to protocol.
+		String errorMessage = "Communication Problem: " + e.getMessage() + "***client terminated";
+		l.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+		try {
+			CookieList c = new CookieList();
+			SpRTResponse resp = new SpRTResponse("ERROR", "NULL", errorMessage, c);
+			SpRTState.sendResponse(resp, l, clntChan.socket(), out);
+		} catch (SpRTException e1) {
+			errorMessage = "Error responding to bad input: " + e.getMessage();
+			l.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
+		}
+	}
 
 	@Override
 	public void handleWrite(SelectionKey key) throws IOException{
-		// TODO Auto-generated method stub
 		/*
 		 * Channel is available for writing, key is valid
 		 * IE client channel is not closed.
 		 */
-		//Retrieve response stored in buffer.
+		//Send as much of our queued responses as the socket will take;
+		//the rest stays queued for the next OP_WRITE.
 		SpRTAttachment attachment = (SpRTAttachment) key.attachment();
-		ByteBuffer buf = attachment.getBuf();
-		State currState = attachment.getState();
-		buf.flip(); //prepare for writing
 		SocketChannel clntChan = (SocketChannel) key.channel();
-		//write response to client
-		clntChan.write(buf);
-		if(!buf.hasRemaining()){
-			//Nothing left, no longer interested in writing
-			key.interestOps(SelectionKey.OP_READ);
+		synchronized(attachment.getOut()){
+			long start = System.nanoTime();
+			attachment.writeQueued(clntChan);
+			SpRTMetrics.getRegistry().recordPhase(SpRTMetrics.Phase.WRITE, System.nanoTime() - start);
+			if(!attachment.hasQueuedOutput() && attachment.getState() == State.DONE){
+				//Final response sent
+				handleClose(key);
+			}
+			else{
+				updateInterest(key, attachment);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the operations we wait on for a connection: writes while responses
+	 * are queued, and reads unless the connection is finished, has queued
+	 * more responses than we allow, which holds back a client that sends
+	 * faster than it reads, or has more requests waiting for a worker than
+	 * we allow, which holds back a client that sends faster than we handle.
+	 * Callers must hold the outbound stream's lock.
+	 * 
+	 * @param key key of the connection
+	 * @param attachment connection's attachment
+	 */
+	private void updateInterest(SelectionKey key, SpRTAttachment attachment){
+		int ops = 0;
+		if(attachment.getState() != State.DONE && attachment.getQueuedBytes() < MAXQUEUED
+				&& attachment.getPendingTasks() < MAXPENDING){
+			ops |= SelectionKey.OP_READ;
+		}
+		if(attachment.hasQueuedOutput()){
+			ops |= SelectionKey.OP_WRITE;
 		}
-		//make room for more data to be read in.
-		buf.clear();
-		if(currState == State.DONE){
-			clntChan.close();
+		key.interestOps(ops);
+	}
+	
+	@Override
+	public void handleClose(SelectionKey key) throws IOException{
+		SpRTAttachment attachment = (SpRTAttachment) key.attachment();
+		//A worker checks the key is valid and sets its interest under this lock,
+		//so the key must not be cancelled between the two.
+		synchronized(attachment.getOut()){
+			if(key.channel().isOpen()){
+				//Only the first close of a connection counts
+				SpRTMetrics.getRegistry().connectionClosed();
+			}
+			try {
+				key.channel().close();
+			} finally {
+				//Give the connection's buffers back for the next one to use.
+				attachment.release();
+			}
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package SpRT.app;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that runs its tasks one at a time, in submission order,
+ * on a shared worker pool. Each connection gets its own, so requests
+ * on one connection are handled in order while different connections
+ * proceed in parallel.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTSerialExecutor implements Executor {
+	private final ArrayDeque<Runnable> tasks; //Tasks waiting their turn
+	private final Executor workers; //Shared pool the tasks run on
+	private Runnable active; //Task currently running or scheduled, null if idle
+	
+	/**
+	 * @param workers shared pool to run tasks on
+	 */
+	public SpRTSerialExecutor(Executor workers){
+		this.tasks = new ArrayDeque<>();
+		this.workers = workers;
+	}
+	
+	@Override
+	public synchronized void execute(final Runnable r) {
+		tasks.add(new Runnable(){
+			public void run(){
+				try {
+					r.run();
+				} finally {
+					scheduleNext();
+				}
+			}
+		});
+		if(active == null){
+			scheduleNext();
+		}
+	}
+	
+	/**
+	 * Hands the next waiting task, if any, to the worker pool.
+	 */
+	private synchronized void scheduleNext(){
+		if((active = tasks.poll()) != null){
+			workers.execute(active);
+		}
+	}
+}
@@ -9,15 +9,21 @@
 
 package SpRT.app;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.logging.FileHandler;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
 
 import SPA.app.SPAServer;
 import SpRT.protocol.CookieList;
@@ -43,6 +49,16 @@ public class SpRTServer {
 	
 	//Number of Milliseconds we will allow the server to block on a given client.
 	private final static int BLOCKINGTIME = 25000;
+	//Number of bytes we pull from a client socket at once.
+	private final static int BUFSIZE = 8192;
+	//Thread argument selecting a thread per connection rather than a fixed pool
+	private final static String PERCONNECTION = "virtual";
+	//Most log records waiting for the writer
+	private final static int LOGCAPACITY = 8192;
+	//Drop, rather than wait, when they fill
+	private final static SpRTAsyncHandler.Overflow LOGOVERFLOW = SpRTAsyncHandler.Overflow.DROP;
+	//Number of Milliseconds between metrics reports
+	private final static long METRICSPERIOD = 60000;
 	
 	/**
 	 *  Retrieves and returns an SpRTRequest from the given inputstream,
@@ -69,9 +85,14 @@ public class SpRTServer {
 	 * @param spaServ 
 	 */
 	public static void handleClient(Socket s, Logger l, SPAServer spaServ){
+		SpRTMetrics.getRegistry().connectionOpened();
 		try{
-			//Input from Socket
-			InputStream in = s.getInputStream();
+			//Input from Socket - buffered so that each read pulls a whole
+			//chunk from the socket and requests are parsed from memory.
+			//Any bytes left over after one request stay in the buffer
+			//for the next pass through the loop.
+			//Counted above the buffer, so we know how many bytes each request took.
+			CountingInputStream in = new CountingInputStream(new BufferedInputStream(s.getInputStream(), BUFSIZE));
 			//Output from socket
 			OutputStream out = s.getOutputStream();
 			//We keep track of our state to determine how to handle
@@ -80,14 +101,13 @@ public class SpRTServer {
 			
 			while(currentState != State.DONE){
 				//Request received from client
+				long before = in.getCount();
 				SpRTRequest req = getRequest(in);
-				//Message posted to log
-				String msgLog = "Received Request: " + s.getInetAddress() + ":" + s.getPort() 
-						+ "-" + Thread.currentThread().getId() + " Received: " + req;
+				int reqLength = (int) (in.getCount() - before);
 				//Log message received.
-				l.log(Level.INFO, msgLog + System.getProperty("line.separator"));
+				SpRTState.logRequest(req, l, s.getInetAddress(), s.getPort());
 				//Transition to next state
-				currentState = SpRTState.transition(currentState, req, out, l, s, spaServ);
+				currentState = SpRTState.transition(currentState, req, reqLength, out, l, s, spaServ, null);
 			}
 			
 		} catch(IOException | SpRTException e){
@@ -103,6 +123,7 @@ public class SpRTServer {
 				l.log(Level.WARNING, errorMessage+System.getProperty("line.separator"));
 			}
 		} finally{
+			SpRTMetrics.getRegistry().connectionClosed();
 			try{
 				s.close();
 			}catch(IOException e){
@@ -136,6 +157,53 @@ public class SpRTServer {
 		}
 	}
 	
+	/**
+	 * Creates an executor that starts a new thread for every task.
+	 * Virtual threads are used where the JVM provides them (Java 21+),
+	 * so idle connections cost almost nothing; otherwise we fall back
+	 * to a cached pool of platform threads.
+	 * 
+	 * @return executor running each task on its own thread
+	 */
+	public static ExecutorService newPerConnectionExecutor(){
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	/**
+	 * Accepts clients forever on the calling thread, handing each
+	 * connection to a thread of its own.
+	 * 
+	 * @param servSock
+	 * @param log
+	 * @param spaServ
+	 */
+	public static void runPerConnection(ServerSocket servSock, final Logger log, 
+			final SPAServer spaServ){
+		ExecutorService exec = newPerConnectionExecutor();
+		while(true){
+			try{
+				final Socket clientSocket = servSock.accept(); //wait for connection
+				//set Blocking time
+				clientSocket.setSoTimeout(BLOCKINGTIME);
+				//Enable address reuse.
+				clientSocket.setReuseAddress(true);
+				exec.execute(new Runnable(){
+					public void run(){
+						handleClient(clientSocket, log, spaServ); //process
+					}
+				});
+			} catch(IOException e){
+				System.err.println("Unable to start: " + e.getMessage());
+				terminator(servSock);
+			}
+		}
+	}
+	
 	/**
 	 * Closes socket and handles any error that occurs.
 	 * @param servSock ServerSocket being closed.
@@ -153,7 +221,7 @@ public class SpRTServer {
 	/**
 	 * Creates a pool of threads to take clients for the Poll and Hello functions
 	 * 
-	 * @param args server port, number of threads
+	 * @param args server port, number of threads (or "virtual" for a thread per connection)
 	 */
 	public static void main(String[] args){
 		//Retrieve arguments
@@ -163,12 +231,14 @@ public class SpRTServer {
 		}
 		//Server Port
 		int serverPort = Integer.parseInt(args[0]);
+		//Whether each connection gets its own thread
+		boolean perConnection = PERCONNECTION.equalsIgnoreCase(args[1]);
 		//Number of threads to run at once.
-		int numThreads = Integer.parseInt(args[1]);
+		int numThreads = perConnection ? 0 : Integer.parseInt(args[1]);
 		
 		//Create Logger - Note: Logger is thread-safe
 		//File to which we want to log
-		FileHandler logFile = null;
+		StreamHandler logFile = null;
 		//Formatter used in logging
 		SimpleFormatter formatter = null;
 		try {
@@ -177,17 +247,27 @@ public class SpRTServer {
 			final SPAServer spaServ;	
 			//Logger
 			final Logger log = Logger.getLogger("ServerLog");
-			logFile = new FileHandler("connections.log");
 			formatter = new SimpleFormatter();
-			logFile.setFormatter(formatter);
+			logFile = new StreamHandler(new FileOutputStream("connections.log"), formatter);
 			logFile.setEncoding("US-ASCII");
-			log.addHandler(logFile);
+			//Records reach the file from a background writer, off the request path
+			SpRTAsyncHandler asyncLog = new SpRTAsyncHandler(logFile, LOGCAPACITY, LOGOVERFLOW);
+			log.addHandler(asyncLog);
+			//and only from there - the root logger's console handler would format and
+			//write each record on the calling thread
+			log.setUseParentHandlers(false);
+			//Log latency and throughput figures every METRICSPERIOD; SPA metrics
+			//queries also report how many records the log has yet to write
+			SpRTMetrics.getRegistry().setLogQueue(asyncLog);
+			SpRTMetrics.getRegistry().startReporting(log, METRICSPERIOD);
 			
 			//Create Server Socket
 			//Server Socket used to take connections
 			final ServerSocket servSock = new ServerSocket(serverPort);
 			//Create SPA server with a single socket to service SPA queries.
 			spaServ = new SPAServer(serverPort, log);
+			//Answer SPA metrics queries from the registry our connections feed
+			spaServ.setMetrics(SpRTMetrics.getRegistry());
 			//The SPA Server spins indefinitely serving clients,
 			//so we give it its own thread.
 			Thread spaThread = new Thread(){
@@ -198,6 +278,12 @@ public class SpRTServer {
 			};
 			spaThread.start();
 			
+			//In per-connection mode this thread accepts clients and
+			//spawns a (virtual) thread for each one.
+			if(perConnection){
+				runPerConnection(servSock, log, spaServ);
+			}
+			
 			//Spawn specified number of threads to service clients
 			//NOTE: Each message sent or received is logged to file.
 			for(int i = 0; i < numThreads; i++){
@@ -218,4 +304,54 @@ public class SpRTServer {
 		}
 	}
 
+	/**
+	 * Input stream counting the bytes read through it
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count; //Bytes read so far
+		
+		/**
+		 * @param in stream to count reads from
+		 */
+		public CountingInputStream(InputStream in){
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException{
+			int b = super.read();
+			if(b != -1){
+				count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException{
+			int n = super.read(b, off, len);
+			if(n > 0){
+				count += n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException{
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public boolean markSupported(){
+			return false;
+		}
+		
+		/**
+		 * @return number of bytes read so far
+		 */
+		public long getCount(){
+			return count;
+		}
+	}
 }
@@ -1,14 +1,22 @@
 package SpRT.app;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.util.Iterator;
-import java.util.logging.FileHandler;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
 
 import SPA.app.SPAServer;
 import SpRT.protocol.SpRTException;
@@ -17,7 +25,12 @@ import SpRT.protocol.SpRTException;
  * Server that allows a specified number of clients to execute the Poll and
  * Hello functions
  * Server can be restarted immediately
- * Server uses selector-based IO to handle multiple clients
+ * Server uses selector-based IO to handle multiple clients: one boss selector
+ * accepts connections and hands them round-robin to a set of worker reactors,
+ * each running its own selector on its own thread. Requests may optionally be
+ * handled on a pool of worker threads so the reactors only perform I/O, and
+ * SPA queries may be served by the boss selector itself instead of by the
+ * SPA server's own receiver threads.
  * Server also logs all messages to a local file named connections.log
  * Logging Syntax
  * 	<Client IP>:<Client Port>-<Thread ID><space>[Received: <SpRTRequest>|Sent:<SpRTResponse>]
@@ -26,23 +39,56 @@ import SpRT.protocol.SpRTException;
  */
 public class SpRTServerSIO {
 	
-	private static final int BUFSIZE = 15000; //Buffer size (Bytes)
+	private static final int BUFSIZE = 15000; //Largest request accepted (Bytes)
+	private static final boolean DIRECTBUFFERS = false; //true to keep connection buffers off-heap
 	private static final int TIMEOUT = 3000; //Wait timeout (milliseconds)
+	private static final long IDLETIME = 25000; //Time a connection may wait between requests (milliseconds)
+	private static final long MSGTIME = 10000; //Time a request may take to arrive once begun (milliseconds)
 	private final static String ENCODING = "US-ASCII"; //Encoding standard to be passed to logger.
+	private final static String SPASELECTOR = "selector"; //Argument serving SPA from the boss selector
+	private final static int LOGCAPACITY = 8192; //Most log records waiting for the writer
+	private final static SpRTAsyncHandler.Overflow LOGOVERFLOW = SpRTAsyncHandler.Overflow.DROP; //Drop, rather than wait, when they fill
+	private final static long METRICSPERIOD = 60000; //Time between metrics reports (milliseconds)
+	private final static boolean JOURNAL = false; //true to record every request in a binary journal
+	private final static String JOURNALDIR = "journal"; //Directory holding the journal's segments
+	private final static int JOURNALSEGMENT = 16 * 1024 * 1024; //Size of each journal segment (Bytes)
+	private final static int JOURNALSEGMENTS = 8; //Most journal segments kept
 
 	
 	
+	/**
+	 * Runs the server
+	 * 
+	 * @param args server port, optional number of worker reactors (defaults to the number of cores),
+	 * optional number of worker threads handling requests (defaults to 0, handling them on the reactors),
+	 * optional "selector" to serve SPA from the boss selector rather than its own threads
+	 * @throws SpRTException
+	 */
 	public static void main(String[] args) throws SpRTException{
 		
 		//Retrieve arguments
-		if(args.length != 1){
-			System.err.println("Unable to start: Expect server port");
+		if(args.length < 1 || args.length > 4 || (args.length == 4 && !SPASELECTOR.equals(args[3]))){
+			System.err.println("Unable to start: Expect server port, optional number of reactors,"
+					+ " optional number of workers and optional \"" + SPASELECTOR + "\"");
+			System.exit(1);
+		}
+		//Number of worker reactors servicing connections
+		int numReactors = (args.length >= 2) ? Integer.parseInt(args[1]) 
+				: Runtime.getRuntime().availableProcessors();
+		if(numReactors < 1){
+			System.err.println("Unable to start: Need at least one reactor");
+			System.exit(1);
+		}
+		//Number of worker threads handling requests, 0 to handle them on the reactors
+		int numWorkers = (args.length >= 3) ? Integer.parseInt(args[2]) : 0;
+		if(numWorkers < 0){
+			System.err.println("Unable to start: Number of workers cannot be negative");
 			System.exit(1);
 		}
 		
 		//Create Logger - Note: Logger is thread-safe
 		//File to which we want to log
-		FileHandler logFile = null;
+		StreamHandler logFile = null;
 		//Formatter used in logging
 		SimpleFormatter formatter = null;
 		
@@ -50,13 +96,21 @@ public class SpRTServerSIO {
 			
 			//Logger
 			final Logger log = Logger.getLogger("ServerLog");
-			logFile = new FileHandler("connections.log");
 			formatter = new SimpleFormatter();
-			logFile.setFormatter(formatter);
+			logFile = new StreamHandler(new FileOutputStream("connections.log"), formatter);
 			logFile.setEncoding(ENCODING);
-			log.addHandler(logFile);
+			//Records reach the file from a background writer, off the request path
+			SpRTAsyncHandler asyncLog = new SpRTAsyncHandler(logFile, LOGCAPACITY, LOGOVERFLOW);
+			log.addHandler(asyncLog);
+			//and only from there - the root logger's console handler would format and
+			//write each record on the calling thread
+			log.setUseParentHandlers(false);
+			//Log latency and throughput figures every METRICSPERIOD; SPA metrics
+			//queries also report how many records the log has yet to write
+			SpRTMetrics.getRegistry().setLogQueue(asyncLog);
+			SpRTMetrics.getRegistry().startReporting(log, METRICSPERIOD);
 			
-			//Create a selector to multiplex listening sockets and connections
+			//Create a boss selector to multiplex our listening socket
 			Selector selector = Selector.open();
 			
 			//Create listening socket channel and register selector
@@ -68,22 +122,62 @@ public class SpRTServerSIO {
 			listnChannel.register(selector, SelectionKey.OP_ACCEPT);
 			
 			
-			//Create SPA server with a single socket to service SPA queries.
-			final SPAServer spaServ = new SPAServer(servPort, log);
-			//The SPA Server spins indefinitely serving clients,
-			//so we give it its own thread.
-			Thread spaThread = new Thread(){
-				public void run(){
-					//Handle SPA clients
-					spaServ.takeClients();
-				}
-			};
-			spaThread.start();
+			final SPAServer spaServ;
+			//Buffers the boss thread receives SPA queries into and replies from
+			ByteBuffer spaIn = null;
+			ByteBuffer spaOut = null;
+			if(args.length == 4){
+				//Register a nonblocking SPA channel with our boss selector,
+				//so no thread sits blocked waiting for queries.
+				spaServ = new SPAServer(log);
+				DatagramChannel spaChannel = DatagramChannel.open();
+				spaChannel.bind(new InetSocketAddress(servPort));
+				spaChannel.configureBlocking(false);
+				spaChannel.register(selector, SelectionKey.OP_READ);
+				spaIn = ByteBuffer.allocateDirect(SPAServer.MSGLENGTH);
+				spaOut = ByteBuffer.allocateDirect(SPAServer.MSGLENGTH);
+			}
+			else{
+				//Create SPA server with a single socket to service SPA queries.
+				spaServ = new SPAServer(servPort, log);
+				//The SPA Server spins indefinitely serving clients,
+				//so we give it its own thread.
+				Thread spaThread = new Thread(){
+					public void run(){
+						//Handle SPA clients
+						spaServ.takeClients();
+					}
+				};
+				spaThread.start();
+			}
+			
+			//Answer SPA metrics queries from the registry our connections feed
+			spaServ.setMetrics(SpRTMetrics.getRegistry());
+			
+			//Binary journal of every request answered, if requested
+			SpRTJournal journal = null;
+			if(JOURNAL){
+				journal = new SpRTJournal(Paths.get(JOURNALDIR), JOURNALSEGMENT, JOURNALSEGMENTS, log);
+				spaServ.setJournal(journal);
+			}
 			
-			//Create a handler that will implement the protocol
-			TCPProtocol protocol = new SpRTSelectorProtocol(BUFSIZE);
-			while(true){ //Run forever, processing IO as it becomes available
-				//Wait for some channel to be ready (or else timeout)
+			//Pool that handles requests off the reactor threads, if requested
+			ExecutorService workers = (numWorkers > 0) ? Executors.newFixedThreadPool(numWorkers) : null;
+			//Create a handler that will implement the protocol - it holds no
+			//per-connection state, so every reactor can share it.
+			//Connections share a pool of small buffers that grow only as requests need.
+			TCPProtocol protocol = new SpRTSelectorProtocol(BUFSIZE, new SpRTBufferPool(DIRECTBUFFERS), workers, journal);
+			//Start our worker reactors, each with its own selector and thread
+			SpRTReactor[] reactors = new SpRTReactor[numReactors];
+			for(int i = 0; i < numReactors; i++){
+				reactors[i] = new SpRTReactor(protocol, log, spaServ, TIMEOUT, IDLETIME, MSGTIME);
+				Thread reactorThread = new Thread(reactors[i], "SpRTReactor-" + i);
+				reactorThread.start();
+			}
+			
+			int nextReactor = 0; //Reactor to receive the next connection
+			while(true){ //Run forever, accepting connections as they arrive
+				//Wait for some connection to be ready (or else timeout)
 				if(selector.select(TIMEOUT) == 0){ //# of ready channels
 					continue; //If no channels are ready, we iterate the loop again.
 				}
@@ -92,17 +186,22 @@ public class SpRTServerSIO {
 				while(keyIter.hasNext()){
 					SelectionKey key = keyIter.next(); //this is a bit mask
 					if(key.isAcceptable()){ 
-						//If the channel has pending connection requests
-						protocol.handleAccept(key);
-					}
-					if(key.isReadable()){
-						//Client channel has pending data
-						protocol.handleRead(key,log,spaServ);
+						//If the channel has pending connection requests, 
+						//hand the new connection to the next reactor in turn
+						SocketChannel clntChan = listnChannel.accept();
+						if(clntChan != null){
+							reactors[nextReactor].addChannel(clntChan);
+							nextReactor = (nextReactor + 1) % numReactors;
+						}
 					}
-					if(key.isValid() && key.isWritable()){
-						//Client channel is available for writing and 
-						//key is valid (the channel is not closed)
-						protocol.handleWrite(key);
+					else if(key.isReadable()){
+						//SPA queries are waiting; answer every one queued
+						try {
+							spaServ.handleDatagrams((DatagramChannel) key.channel(), spaIn, spaOut);
+						} catch (IOException e) {
+							//A failed reply must not stop us accepting connections
+							log.log(Level.WARNING, "SPA error: " + e.getMessage() + System.getProperty("line.separator"));
+						}
 					}
 					keyIter.remove(); //remove from set of selected keys
 				}
@@ -1,7 +1,10 @@
 package SpRT.app;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +54,21 @@ public class SpRTState {
 	private final static String GENERICOUTLET = "McDonald's";
 	//Base discount associated with Generic Outlet
 	private final static int GENERICDISCOUNT = 10;
+	//Log lines for requests received and responses sent. Their parameters
+	//(address, port, thread ID and message) are only formatted if the line is
+	//logged at all, and then by the log's writer, the servers' loggers having
+	//no other handler.
+	private final static String RECEIVEDLOG = "Received Request: {0}:{1,number,#}-{2,number,#} Received: {3}"
+			+ System.getProperty("line.separator");
+	private final static String SENTLOG = "Sent Response: {0}:{1,number,#}-{2,number,#} Sent: {3}"
+			+ System.getProperty("line.separator");
+	//Status and length of the last response this thread sent, read back by transition
+	private final static ThreadLocal<int[]> LASTSENT = new ThreadLocal<int[]>(){
+		@Override
+		protected int[] initialValue(){
+			return new int[2];
+		}
+	};
 	
 	/**
 	 * Enumerates the state of our function for a given connection
@@ -76,13 +94,51 @@ public class SpRTState {
 	 * @throws SpRTException
 	 */
 	public static void sendResponse(SpRTResponse resp, Logger l, Socket s, OutputStream out) throws NullPointerException, SpRTException{
-		//Send response
-		resp.encode(out);
-		//Message posted to log
-		String msgLog = "Sent Response: " + s.getInetAddress() + ":" + s.getPort() 
-				+ "-" + Thread.currentThread().getId() + " Sent: " + resp;
+		SpRTMetrics metrics = SpRTMetrics.getRegistry();
+		long start = System.nanoTime();
+		//Send response - encoded straight into the connection's buffer when we have one
+		if(out instanceof ByteBufferOutputStream){
+			ByteBufferOutputStream bufOut = (ByteBufferOutputStream) out;
+			bufOut.ensureCapacity(resp.encodedLength());
+			resp.encodeTo(bufOut.getBuffer());
+			metrics.recordPhase(SpRTMetrics.Phase.ENCODE, System.nanoTime() - start);
+		}
+		else{
+			//Otherwise encode it whole first, so the socket's time is counted as writing
+			ByteBuffer encoded = ByteBuffer.allocate(resp.encodedLength());
+			resp.encodeTo(encoded);
+			long encodedAt = System.nanoTime();
+			metrics.recordPhase(SpRTMetrics.Phase.ENCODE, encodedAt - start);
+			try{
+				out.write(encoded.array(), 0, encoded.position());
+			} catch(IOException e){
+				throw new SpRTException("IO Error", e);
+			}
+			metrics.recordPhase(SpRTMetrics.Phase.WRITE, System.nanoTime() - encodedAt);
+		}
+		int[] sent = LASTSENT.get();
+		sent[0] = STATUSERROR.equals(resp.getStatus()) ? SpRTJournal.STATUSERROR : SpRTJournal.STATUSOK;
+		sent[1] = resp.encodedLength();
 		//Log response
-		l.log(Level.INFO, msgLog + System.getProperty("line.separator"));
+		if(l.isLoggable(Level.INFO)){
+			l.log(Level.INFO, SENTLOG, new Object[]{s.getInetAddress(), s.getPort(),
+					Thread.currentThread().getId(), resp});
+		}
+	}
+	
+	/**
+	 * Makes a log of a received request. The request is formatted later by
+	 * the log's writer, so it must not be changed once logged.
+	 * 
+	 * @param req request received
+	 * @param l logger recording event
+	 * @param addr address the request came from
+	 * @param port port the request came from
+	 */
+	public static void logRequest(SpRTRequest req, Logger l, InetAddress addr, int port){
+		if(l.isLoggable(Level.INFO)){
+			l.log(Level.INFO, RECEIVEDLOG, new Object[]{addr, port, Thread.currentThread().getId(), req});
+		}
 	}
 	
 	
@@ -195,7 +251,8 @@ public class SpRTState {
 		State newState = state;
 		//In NeedName, we expect to receive a first and last name
 		String [] names = req.getParams(); //this should contain our names
-		CookieList cookies = req.getCookieList(); //retrieve any attached cookies.
+		//Copy any attached cookies rather than change the logged request's.
+		CookieList cookies = new CookieList(req.getCookieList());
 		//Assuming we receive both, we add those to the received cookieList
 		if(names.length == 2){
 			cookies.add(FNAME, names[0]);
@@ -310,6 +367,29 @@ public class SpRTState {
 	 */
 	public static State transition(State currState, SpRTRequest req, OutputStream out, Logger l,
 			Socket s, SPAServer spaServ){
+		return transition(currState, req, req.encodedLength(), out, l, s, spaServ, null);
+	}
+	
+	/**
+	 * Processes and responds to the given request based on the given state,
+	 * recording it in the metrics registry and a journal, then returns the next connection state
+	 * 
+	 * @param currState
+	 * @param req request to be processed
+	 * @param reqLength number of bytes the request was framed from
+	 * @param out outputStream to respond over
+	 * @param l logger to log with.
+	 * @param s socket in use
+	 * @param spaServ SPA server recording invocations
+	 * @param journal journal to record the request in, or null
+	 * @return newState
+	 */
+	public static State transition(State currState, SpRTRequest req, int reqLength, OutputStream out,
+			Logger l, Socket s, SPAServer spaServ, SpRTJournal journal){
+		long start = System.nanoTime();
+		int[] sent = LASTSENT.get();
+		sent[0] = SpRTJournal.STATUSNONE;
+		sent[1] = 0;
 		//Represents the state we are in after processing the message
 		//can be same as initial state.
 		State newState = currState;
@@ -348,6 +428,14 @@ public class SpRTState {
 			//We set our state to done so that the handler knows to terminate this connection.
 			newState = State.DONE;
 		}
+		long elapsed = System.nanoTime() - start;
+		SpRTMetrics metrics = SpRTMetrics.getRegistry();
+		metrics.recordPhase(SpRTMetrics.Phase.TRANSITION, elapsed);
+		metrics.recordRequest(req.getFunction(), elapsed, reqLength, sent[1]);
+		if(journal != null){
+			journal.record(s.getInetAddress(), s.getPort(), SpRTJournal.SPRT, sent[0],
+					SpRTJournal.functionId(req.getFunction()), elapsed, reqLength, sent[1]);
+		}
 		
 		return newState;
 	}
@@ -0,0 +1,108 @@
+package SpRT.app;
+
+import java.util.List;
+
+/**
+ * Hashed timing wheel tracking the deadline of every connection on a reactor.
+ * Each connection's attachment is linked into the slot of the tick its
+ * deadline falls in, so scheduling, moving and removing a connection are O(1)
+ * and each tick only visits the connections in its own slot. Deadlines more
+ * than one turn of the wheel away simply stay put until their turn comes.
+ * Not thread-safe: a wheel belongs to a single reactor thread.
+ * @author Corey Royse
+ * Assignment: Program 6
+ */
+public class SpRTTimingWheel {
+
+	private final SpRTAttachment[] slots; //Head of the list of connections in each slot
+	private final int mask; //slots.length - 1, slots.length being a power of two
+	private final long tickMillis; //Length of one tick
+	private long currentTick; //Last tick whose slot has been expired
+
+	/**
+	 * @param numSlots number of slots, rounded up to a power of two
+	 * @param tickMillis length of one tick in milliseconds
+	 * @param now current time in milliseconds
+	 */
+	public SpRTTimingWheel(int numSlots, long tickMillis, long now){
+		int size = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+		this.slots = new SpRTAttachment[size];
+		this.mask = size - 1;
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Places a connection in the slot for its current deadline,
+	 * moving it if it was already scheduled elsewhere.
+	 *
+	 * @param conn attachment of the connection
+	 */
+	public void schedule(SpRTAttachment conn){
+		//Never slot into a tick that has already been expired
+		long tick = Math.max(conn.getDeadline() / tickMillis, currentTick + 1);
+		if(conn.wheelTick == tick && conn.wheelSlot != -1){
+			return; //Already in the right place
+		}
+		remove(conn);
+		int slot = (int) (tick & mask);
+		conn.wheelTick = tick;
+		conn.wheelSlot = slot;
+		conn.wheelPrev = null;
+		conn.wheelNext = slots[slot];
+		if(slots[slot] != null){
+			slots[slot].wheelPrev = conn;
+		}
+		slots[slot] = conn;
+	}
+
+	/**
+	 * Stops tracking a connection. Does nothing if it is not scheduled.
+	 *
+	 * @param conn attachment of the connection
+	 */
+	public void remove(SpRTAttachment conn){
+		if(conn.wheelSlot == -1){
+			return;
+		}
+		if(conn.wheelPrev != null){
+			conn.wheelPrev.wheelNext = conn.wheelNext;
+		}
+		else{
+			slots[conn.wheelSlot] = conn.wheelNext;
+		}
+		if(conn.wheelNext != null){
+			conn.wheelNext.wheelPrev = conn.wheelPrev;
+		}
+		conn.wheelPrev = null;
+		conn.wheelNext = null;
+		conn.wheelSlot = -1;
+	}
+
+	/**
+	 * Advances the wheel to the given time, removing and collecting every
+	 * connection whose deadline has passed.
+	 *
+	 * @param now current time in milliseconds
+	 * @param expired list to which the attachments of expired connections are added
+	 */
+	public void expire(long now, List<SpRTAttachment> expired){
+		long nowTick = now / tickMillis;
+		while(currentTick < nowTick){
+			currentTick++;
+			SpRTAttachment conn = slots[(int) (currentTick & mask)];
+			while(conn != null){
+				SpRTAttachment next = conn.wheelNext;
+				if(conn.getDeadline() <= now){
+					remove(conn);
+					expired.add(conn);
+				}
+				else if(conn.wheelTick <= currentTick){
+					//Due this tick but not yet this millisecond
+					schedule(conn);
+				}
+				conn = next;
+			}
+		}
+	}
+}
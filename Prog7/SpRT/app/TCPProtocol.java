@@ -2,6 +2,8 @@ package SpRT.app;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Logger;
 
 import SPA.app.SPAServer;
@@ -13,6 +15,8 @@ import SPA.app.SPAServer;
  */
 public interface TCPProtocol {
 	void handleAccept(SelectionKey key) throws IOException;
+	void handleRegister(SocketChannel clntChan, Selector selector) throws IOException;
 	void handleRead(SelectionKey key, Logger l, SPAServer spaServ) throws IOException;
 	void handleWrite(SelectionKey key) throws IOException;
+	void handleClose(SelectionKey key) throws IOException;
 }
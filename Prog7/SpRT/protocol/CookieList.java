@@ -13,23 +13,33 @@ package SpRT.protocol;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.Map.Entry;
 import java.util.Set;
 
 
 /**
  * List of cookies - that is, name/value pairs
+ * Cookies are kept in flat name/value arrays indexed by an open-addressing
+ * hash table, and the alphabetical order used for encoding is computed once
+ * and cached until the list next changes, as is the encoded form itself.
+ * The caches are volatile: a list that is no longer being changed may be
+ * encoded by one thread while another, such as a log writer, formats it.
+ * Lists are still serialized as the map of cookies earlier versions held,
+ * so saved cookie files read back in either version.
  * @Author:    Corey Royse
  * Assignment: Program 0
  */
@@ -40,9 +50,31 @@ public class CookieList implements Serializable{
 	* Serial UID
 	*/
  private static final long serialVersionUID = -2604908935069187353L;
+ //Serialized form: the Map<String,String> named cookies that earlier versions held
+ private static final ObjectStreamField[] serialPersistentFields = {
+	 new ObjectStreamField("cookies", Map.class)
+ };
  
- //Map in which we store a keys and values - our cookies
- private Map<String,String> cookies;
+ //Names of our cookies, in the order they were first added
+ private String[] names;
+ //Values of our cookies, values[i] belonging to names[i]
+ private String[] values;
+ //Number of cookies in the list
+ private int size;
+ //Sum of the hashes of our cookies, kept current by add
+ private int hash;
+ //Open-addressing hash table of indices into names, plus one; 0 marks an empty slot
+ private int[] table;
+ //Indices into names in alphabetical order, null until needed after a change
+ private transient volatile int[] sorted;
+ //Unmodifiable set of our names, null until needed after a change
+ private transient volatile Set<String> nameSet;
+ //Our encoded form, including the terminating CRLF, null until needed after a change
+ private transient volatile byte[] encoded;
+ //Initial number of cookies we have room for
+ private static final int INITIALCAPACITY = 4;
+ //Alphabetical order of cookies, ignoring case
+ private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER;
  //String representing the sort of encoding we expect to use.
  private static final String ENCODING = "US-ASCII";
  //String representing our delimiter at the end of cookies
@@ -55,7 +87,35 @@ public class CookieList implements Serializable{
   * 
   */ 
  public CookieList(){
-	 cookies = new HashMap<>();
+	 init();
+ }
+ 
+ /**
+  * Creates a new CookieList holding the same name/value pairs as another,
+  * which later changes to either list leave alone
+  * 
+  * @param other list to copy
+  */
+ public CookieList(CookieList other){
+	 names = other.names.clone();
+	 values = other.values.clone();
+	 size = other.size;
+	 hash = other.hash;
+	 table = other.table.clone();
+ }
+ 
+ /**
+  * Empties our arrays and hash table, making room for a few cookies.
+  */
+ private void init(){
+	 names = new String[INITIALCAPACITY];
+	 values = new String[INITIALCAPACITY];
+	 size = 0;
+	 hash = 0;
+	 table = new int[INITIALCAPACITY * 2];
+	 sorted = null;
+	 nameSet = null;
+	 encoded = null;
  }
  
 
@@ -76,7 +136,7 @@ public class CookieList implements Serializable{
 	try {
 		InputStreamReader reader = new InputStreamReader(in, ENCODING);
 		//Initialize cookie set
-		cookies = new HashMap<>();
+		init();
 		//Retrieve names and values
 		String name = "";
 		String token = "";
@@ -184,6 +244,64 @@ public class CookieList implements Serializable{
  }
  
 
+ /**
+  * Decodes a CookieList directly out of the given buffer, starting at its
+  * position and ending with the CRLF that terminates the list.
+  * On success the position is left just past that CRLF.
+  * 
+  * @param  buf buffer to decode from
+  * @return decoded CookieList
+  * @throws SpRTException in event of invalid or incomplete input
+  * @throws NullPointerException in event of null input
+  */
+ public static CookieList decode(ByteBuffer buf) throws SpRTException, NullPointerException{
+	 if(buf == null){
+		 throw new NullPointerException("Null buffer passed to CookieList");
+	 }
+	 CookieList list = new CookieList();
+	 while(true){
+		 if(!buf.hasRemaining()){
+			 throw new SpRTException("Ran out of data before end of list");
+		 }
+		 //A CRLF where we expect a name marks the end of the list.
+		 if(buf.get(buf.position()) == '\r'){
+			 buf.get();
+			 SpRTMessage.expectByte(buf, '\n');
+			 return list;
+		 }
+		 int eq = endOfToken(buf, buf.position(), '=');
+		 int cr = endOfToken(buf, eq + 1, '\r');
+		 list.add(SpRTMessage.asciiString(buf, buf.position(), eq), 
+				 SpRTMessage.asciiString(buf, eq + 1, cr));
+		 buf.position(cr + 1);
+		 SpRTMessage.expectByte(buf, '\n');
+	 }
+ }
+ 
+ /**
+  * Scans an alphanumeric token starting at the given index.
+  * 
+  * @param buf buffer being decoded
+  * @param from absolute index at which the token starts
+  * @param delim byte expected to follow the token
+  * @return absolute index of the delimiter
+  * @throws SpRTException if the token contains any other character or is incomplete
+  */
+ private static int endOfToken(ByteBuffer buf, int from, char delim) throws SpRTException{
+	 int i = from;
+	 while(i < buf.limit()){
+		 byte b = buf.get(i);
+		 if(b == delim){
+			 return i;
+		 }
+		 if(!((b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z'))){
+			 throw new SpRTException("CookieList contains invalid character");
+		 }
+		 i++;
+	 }
+	 throw new SpRTException("Ran out of data before end of list");
+ }
+ 
  /**
   * Creates a new CookieList by decoding from the console(user)
   * NOTE: Not implemented yet.
@@ -193,20 +311,94 @@ public class CookieList implements Serializable{
   */
 public CookieList(Scanner in, PrintStream out){
   /*NOT TO BE IMPLEMENTED YET*/
+	 init();
  }
 
  
+ /**
+  * Writes our cookies as the map earlier versions serialized.
+  * 
+  * @param out stream to write to
+  * @throws IOException in event of error writing
+  */
+ private void writeObject(ObjectOutputStream out) throws IOException{
+	 Map<String,String> cookies = new HashMap<>();
+	 for(int i = 0; i < size; i++){
+		 cookies.put(names[i], values[i]);
+	 }
+	 ObjectOutputStream.PutField fields = out.putFields();
+	 fields.put("cookies", cookies);
+	 out.writeFields();
+ }
+ 
+ /**
+  * Reads our cookies from the map earlier versions serialized, rebuilding
+  * our arrays, hash table and hash around them.
+  * 
+  * @param in stream to read from
+  * @throws IOException in event of error reading, or of an invalid cookie
+  * @throws ClassNotFoundException if the map's class cannot be found
+  */
+ private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+	 ObjectInputStream.GetField fields = in.readFields();
+	 Object cookies = fields.get("cookies", null);
+	 init();
+	 if(cookies == null){
+		 return;
+	 }
+	 if(!(cookies instanceof Map)){
+		 throw new InvalidObjectException("Cookies are not a map");
+	 }
+	 for(Map.Entry<?,?> entry : ((Map<?,?>) cookies).entrySet()){
+		 if(!(entry.getKey() instanceof String) || !(entry.getValue() instanceof String)){
+			 throw new InvalidObjectException("Cookie is not a name/value pair");
+		 }
+		 try{
+			 add((String) entry.getKey(), (String) entry.getValue());
+		 } catch(SpRTException e){
+			 throw new InvalidObjectException(e.getMessage());
+		 }
+	 }
+ }
+
  /**
   * Simple check that returns true if the CookieList is empty.
   * 
   * @return true if empty
   */
 public boolean isEmpty(){
-	 boolean ret = false;
-	 if(cookies.isEmpty()){
-		 ret = true;
+	 return size == 0;
+ }
+ 
+ /**
+  * Finds the slot of our hash table holding the given name, or the empty
+  * slot where it would go.
+  * 
+  * @param name name to look for
+  * @return index into table
+  */
+ private int slotOf(String name){
+	 int mask = table.length - 1;
+	 int h = name.hashCode();
+	 //Spread the high bits down, as HashMap does
+	 int slot = (h ^ (h >>> 16)) & mask;
+	 while(table[slot] != 0 && !names[table[slot] - 1].equals(name)){
+		 slot = (slot + 1) & mask; //linear probing
+	 }
+	 return slot;
+ }
+ 
+ /**
+  * Doubles our arrays and rebuilds the hash table around them.
+  */
+ private void grow(){
+	 names = Arrays.copyOf(names, names.length * 2);
+	 values = Arrays.copyOf(values, values.length * 2);
+	 //Keep the table at most half full so probes stay short
+	 table = new int[names.length * 2];
+	 for(int i = 0; i < size; i++){
+		 table[slotOf(names[i])] = i + 1;
 	 }
-	 return ret;
  }
 
  
@@ -219,26 +411,10 @@ public boolean isEmpty(){
   * @throws SpRTException in event of invalid cookie
   */
  public void add(String name, String value) throws SpRTException{
-	 //Check to see if name exists
-	 //if name exists, replace value
 	if(name.equals(null)){
 		throw new SpRTException("Cookie Key must have nonzero length");
 	}
-	 if(cookies.size() > 0){
-		 Iterator<Entry<String, String>> it = cookies.entrySet().iterator();
-		 while(it.hasNext()){
-			 Map.Entry<String, String> c = (Entry<String, String>)it.next();
-			 if(c.getKey().equals(name)){
-				if(value.length() > 0){
-				   c.setValue(value);
-				}
-				else{
-					throw new SpRTException("Invalid Value: Length 0");
-				}
-			 }
-		 }
-	 }
-	 //Otherwise, validate and insert new cookie.
+	 //Validate the cookie before touching our list.
 	 if(name.length() > 0 && value.length() > 0){
 		 for(int i = 0; i < name.length(); i++){
 			 if(!Character.isLetterOrDigit(name.charAt(i))){
@@ -250,11 +426,123 @@ public boolean isEmpty(){
 				 throw new SpRTException("Invalid name token");
 			 }
 		 }
-		 cookies.put(name, value);
 	 }
 	 else{
 		 throw new SpRTException("Invalid Token: Name or Value length 0");
 	 }
+	 //if name exists, replace value
+	 int slot = slotOf(name);
+	 if(table[slot] != 0){
+		 int index = table[slot] - 1;
+		 hash += cookieHash(name, value) - cookieHash(name, values[index]);
+		 values[index] = value;
+		 encoded = null;
+		 return;
+	 }
+	 //Otherwise, insert new cookie.
+	 if(size == names.length){
+		 grow();
+		 slot = slotOf(name);
+	 }
+	 names[size] = name;
+	 values[size] = value;
+	 size++;
+	 hash += cookieHash(name, value);
+	 table[slot] = size;
+	 //Our order, name set and encoding no longer hold
+	 sorted = null;
+	 nameSet = null;
+	 encoded = null;
+ }
+
+ /**
+  * Returns our encoded form, building it only if the list has changed
+  * since the last call. The array must not be modified.
+  * 
+  * @return ASCII bytes of every name=value CRLF, in alphabetical order, then CRLF
+  */
+ private byte[] encodedBytes(){
+	 byte[] bytes = encoded;
+	 if(bytes == null){
+		 bytes = new byte[encodedLength()];
+		 int pos = 0;
+		 int[] order = sortedOrder();
+		 for(int i = 0; i < order.length; i++){
+			 pos = putAscii(bytes, pos, names[order[i]]);
+			 bytes[pos++] = '=';
+			 pos = putAscii(bytes, pos, values[order[i]]);
+			 bytes[pos++] = '\r';
+			 bytes[pos++] = '\n';
+		 }
+		 bytes[pos++] = '\r';
+		 bytes[pos++] = '\n';
+		 encoded = bytes;
+	 }
+	 return bytes;
+ }
+
+ /**
+  * Copies the characters of an ASCII String into an array, one byte each,
+  * substituting '?' for anything outside ASCII as String.getBytes would.
+  * 
+  * @param bytes array to copy to
+  * @param pos index to start at
+  * @param str ASCII String to copy
+  * @return index just past the copied characters
+  */
+ private static int putAscii(byte[] bytes, int pos, String str){
+	 for(int i = 0; i < str.length(); i++){
+		 char c = str.charAt(i);
+		 bytes[pos++] = (c < 0x80) ? (byte) c : (byte) '?';
+	 }
+	 return pos;
+ }
+
+ /**
+  * Hashes a single cookie. Mixing the bits well lets the plain sum in
+  * hashCode stay independent of order without similar cookies cancelling out.
+  * 
+  * @param name cookie name
+  * @param value cookie value
+  * @return hash of the cookie
+  */
+ private static int cookieHash(String name, String value){
+	 int h = name.hashCode() * 31 + value.hashCode();
+	 //Final mixing step of MurmurHash3
+	 h ^= h >>> 16;
+	 h *= 0x85ebca6b;
+	 h ^= h >>> 13;
+	 h *= 0xc2b2ae35;
+	 h ^= h >>> 16;
+	 return h;
+ }
+
+ /**
+  * Returns the indices of our cookies in alphabetical order, sorting
+  * only if the list has changed since the last call.
+  * 
+  * @return indices into names and values
+  */
+ private int[] sortedOrder(){
+	 int[] cached = sorted;
+	 if(cached == null){
+		 Integer[] order = new Integer[size];
+		 for(int i = 0; i < size; i++){
+			 order[i] = i;
+		 }
+		 Arrays.sort(order, new Comparator<Integer>(){
+			 public int compare(Integer a, Integer b){
+				 return ORDER.compare(names[a], names[b]);
+			 }
+		 });
+		 int[] result = new int[size];
+		 for(int i = 0; i < size; i++){
+			 result[i] = order[i];
+		 }
+		 sorted = result;
+		 cached = result;
+	 }
+	 return cached;
  }
 
  
@@ -275,38 +563,55 @@ public void encode(java.io.OutputStream out)
 		 throw new NullPointerException("Null output stream");
 	 }
 	 else{
-		 //write name, '=', value, CRLF as a string of bytes for all cookies.
-		 //Contains all the names of our cookies
-		 List<String> nameList = new ArrayList<>();
-		 nameList.addAll(getNames());
-		 //Name
-		 String n;
-		 //Value
-		 String v;
-		 //String to encode
-		 String str;
-		 Collections.sort(nameList, String.CASE_INSENSITIVE_ORDER);
-		 for(int i = 0; i < nameList.size(); i++){
-			 n = nameList.get(i);
-			 v = getValue(n);
-			 str = n + "=" + v + '\r' + '\n';
-			 try {
-					out.write(str.getBytes(ENCODING));
-			} catch (IOException e) {
-					throw new SpRTException("IO Error",e);
-			}
-		 }
-		 str = "" + '\r' + '\n';
+		 //write name, '=', value, CRLF for all cookies, then the closing CRLF,
+		 //as a single copy of our cached encoding.
 		 try {
-			out.write(str.getBytes(ENCODING));
+			out.write(encodedBytes());
 		} catch (IOException e) {
-			throw new UnsupportedEncodingException("Improper Encoding Standard");
+			throw new SpRTException("IO Error",e);
 		}
 	 }
   }
 
 
 
+ /**
+  * Encodes the name-value list as ASCII bytes written directly into the
+  * given buffer, in the same alphabetical order as encode.
+  * 
+  * @param buf buffer to be encoded to
+  * @throws SpRTException if the buffer lacks room for the list
+  * @throws NullPointerException in event of null buffer
+  */
+ public void encodeTo(ByteBuffer buf) throws SpRTException, NullPointerException{
+	 if(buf == null){
+		 throw new NullPointerException("Null buffer");
+	 }
+	 if(encodedLength() > buf.remaining()){
+		 throw new SpRTException("Insufficient buffer space to encode CookieList");
+	 }
+	 buf.put(encodedBytes());
+ }
+ 
+ /**
+  * Returns the exact number of bytes encode or encodeTo will produce
+  * for this list.
+  * 
+  * @return encoded size in bytes
+  */
+ public int encodedLength(){
+	 byte[] bytes = encoded;
+	 if(bytes != null){
+		 return bytes.length;
+	 }
+	 //Each cookie is name, '=', value, CRLF, and the list ends with a CRLF
+	 int len = 2;
+	 for(int i = 0; i < size; i++){
+		 len += names[i].length() + 1 + values[i].length() + 2;
+	 }
+	 return len;
+ }
+
  /**
   * Return true if and only if the contents of our name/value list
   * is identical to that of the object given
@@ -315,31 +620,24 @@ public void encode(java.io.OutputStream out)
   * @return boolean		true if equal
   */
  public boolean equals(Object obj){
-  if(obj instanceof CookieList){ 
-	  //CookieList we are comparing to.
-	  CookieList otherList = (CookieList)obj;
-	  //Cookie Names from other list.
-	  Set<String> otherCookies = otherList.getNames();
-	  
-	  //If our sizes are not equal, we know immediately that the lists are not equal.
-	  if(cookies.size() == otherCookies.size()){
-		  //Iterator used to traverse our list
-		  Iterator<Entry<String, String>> it1 = cookies.entrySet().iterator();
-		  //Iterator used to traverse the other list
-		  Iterator<String> it2 = otherCookies.iterator();
-		  while(it1.hasNext()){
-			  Map.Entry<String,String> c1 = (Entry<String, String>)it1.next();
-			  String c2 = it2.next();
-			  if(!c1.getKey().equals(c2)
-					  || !(getValue(c1.getKey()).equals(otherList.getValue(c2)))){
-				  return false;
-			  }
-		  }
-	  }
-	  else{
+  if(obj == this){
+	  return true;
+  }
+  if(!(obj instanceof CookieList)){ 
+	  return false;
+  }
+  //CookieList we are comparing to.
+  CookieList otherList = (CookieList)obj;
+  //If our sizes or hashes are not equal, we know immediately that the lists are not equal.
+  if(size != otherList.size || hash != otherList.hash){
+	  return false;
+  }
+  //Otherwise every one of our cookies must have the same value in the other list.
+  for(int i = 0; i < size; i++){
+	  if(!values[i].equals(otherList.getValue(names[i]))){
 		  return false;
 	  }
-  	}
+  }
   return true;
   }
 
@@ -347,19 +645,23 @@ public void encode(java.io.OutputStream out)
  
  /**
   * Simple getter for our set of names.
+  * The set is unmodifiable and iterates in alphabetical order.
   *
   * @return Set<String> names
   */
  public Set<String> getNames(){
-  //Set of cookie Names.
-  Set<String> names = new HashSet<>();
-  //Iterator used to traverse our cookieList.
-  Iterator<Entry<String, String>> it = cookies.entrySet().iterator();
-  while(it.hasNext()){
-	  Map.Entry<String,String> cookie = (Entry<String, String>)it.next();
-	  names.add((String)cookie.getKey());
+  Set<String> cached = nameSet;
+  if(cached == null){
+	  //Set of cookie Names.
+	  Set<String> set = new LinkedHashSet<>();
+	  int[] order = sortedOrder();
+	  for(int i = 0; i < order.length; i++){
+		  set.add(names[order[i]]);
+	  }
+	  cached = Collections.unmodifiableSet(set);
+	  nameSet = cached;
   }
-  return names; 
+  return cached; 
  }
  
 
@@ -372,18 +674,9 @@ public void encode(java.io.OutputStream out)
   * @return value associated with the name, or null.
   */
  public String getValue(String name){
-    //Find name in set
-	//Iterator used to traverse list.
-    Iterator<Entry<String, String>> it = cookies.entrySet().iterator();
-    while(it.hasNext()){
-	  Map.Entry<String,String> cookie = (Entry<String,String>)it.next();
-	  if(cookie.getKey().equals(name)){
-		  //When we find the cookie with the right name, we immediately return the associated value
-		  return (String)cookie.getValue();
-	  }
-    }
-    //if name is not found return null
-    return null;
+	 int index = table[slotOf(name)];
+	 //if name is not found return null
+	 return (index == 0) ? null : values[index - 1];
  }
 
 
@@ -392,13 +685,13 @@ public void encode(java.io.OutputStream out)
   * Returns the integer produced by applying
   * a hash function to the contents of
   * the cookie list.
-  * HASH FUNCTION: Number of cookies - 1 * 32
+  * HASH FUNCTION: sum of the mixed hashes of each name/value pair,
+  * so lists with the same cookies hash alike whatever order they were added in.
+  * The sum is maintained by add, so this is O(1).
   * 
   * @see java.lang.Object#hashCode()
   */
 public int hashCode(){
-  //Hash value
-  int hash = (cookies.size()-1)*32;
   return hash;
  }
 
@@ -413,23 +706,18 @@ public int hashCode(){
   */
 public String toString(){
   //open brackets
-  String cookieString = "Cookies=[";
-  //retrieve data, store in this list
-  List<String> nameList = new ArrayList<>();
-  nameList.addAll(getNames());
-  //Sort names alphabetically
-  Collections.sort(nameList, String.CASE_INSENSITIVE_ORDER);
-  //Print name, equals sign, value, iterate over all names.
-  for(int i = 0; i < nameList.size(); i++){
-	  String s = nameList.get(i);
-	  cookieString = cookieString + s + "=" + getValue(s);
+  StringBuilder cookieString = new StringBuilder("Cookies=[");
+  //Print name, equals sign, value, iterate over all names in alphabetical order.
+  int[] order = sortedOrder();
+  for(int i = 0; i < order.length; i++){
+	  cookieString.append(names[order[i]]).append('=').append(values[order[i]]);
 	  //We don't want to add a space between the last value and the closing bracket.
-	  if(i < nameList.size()-1){
-		  cookieString = cookieString + " ";
+	  if(i < order.length-1){
+		  cookieString.append(' ');
 	  }
   }
   //close brackets, return
-  cookieString = cookieString + "]";
-  return cookieString;
+  cookieString.append(']');
+  return cookieString.toString();
  }
 }
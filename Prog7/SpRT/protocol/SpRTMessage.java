@@ -15,6 +15,9 @@ package SpRT.protocol;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 /**
@@ -28,6 +31,8 @@ public abstract class SpRTMessage{
 	protected CookieList cookies;
 	//Function specified by the message
 	protected String function;
+	//Charset used to materialize tokens decoded from a ByteBuffer
+	protected final static Charset ASCII = StandardCharsets.US_ASCII;
 	
 	/**
 	 * default constructor
@@ -87,6 +92,24 @@ public abstract class SpRTMessage{
 	 */
 	abstract public void encode(OutputStream out) throws SpRTException, NullPointerException;
 	
+	/**
+	 * Encodes the given SpRT message as ASCII bytes written directly into
+	 * the given buffer, starting at its position.
+	 * 
+	 * @param buf buffer to encode to
+	 * @throws SpRT.protocol.SpRTException if the message is invalid or the buffer lacks room for it
+	 * @throws NullPointerException
+	 */
+	abstract public void encodeTo(ByteBuffer buf) throws SpRTException, NullPointerException;
+	
+	/**
+	 * Returns the exact number of bytes encode or encodeTo will produce
+	 * for this message.
+	 * 
+	 * @return encoded size in bytes
+	 */
+	abstract public int encodedLength();
+	
 	
 	/**
 	 * Abstract toString function
@@ -144,4 +167,115 @@ public abstract class SpRTMessage{
 		this.cookies = cookies;
 	}
 	
+	/**
+	 * Writes the characters of the given ASCII String into the buffer,
+	 * one byte each, substituting '?' for anything outside ASCII as
+	 * String.getBytes would.
+	 * 
+	 * @param buf buffer being encoded to
+	 * @param str ASCII String to write
+	 */
+	protected static void putAscii(ByteBuffer buf, String str){
+		for(int i = 0; i < str.length(); i++){
+			char c = str.charAt(i);
+			buf.put((c < 0x80) ? (byte) c : (byte) '?');
+		}
+	}
+	
+	/**
+	 * Verifies that the bytes at the buffer's position match the given token,
+	 * then advances the buffer past them.
+	 * 
+	 * @param buf buffer being decoded
+	 * @param token expected ASCII token
+	 * @param error message of the exception thrown on a mismatch
+	 * @throws SpRTException if the token is missing or incomplete
+	 */
+	protected static void expectToken(ByteBuffer buf, String token, String error) throws SpRTException{
+		if(buf.remaining() < token.length()){
+			throw new SpRTException("Incomplete SpRT Message");
+		}
+		if(!regionMatches(buf, buf.position(), buf.position() + token.length(), token)){
+			throw new SpRTException(error);
+		}
+		buf.position(buf.position() + token.length());
+	}
+	
+	/**
+	 * Reads one byte from the buffer and verifies that it is the one we expect.
+	 * 
+	 * @param buf buffer being decoded
+	 * @param b expected byte
+	 * @throws SpRTException if the byte is missing or does not match
+	 */
+	protected static void expectByte(ByteBuffer buf, char b) throws SpRTException{
+		if(!buf.hasRemaining()){
+			throw new SpRTException("Incomplete SpRT Message");
+		}
+		if(buf.get() != b){
+			throw new SpRTException("Syntax Error");
+		}
+	}
+	
+	/**
+	 * Finds the first occurrence of either delimiter at or after the
+	 * buffer's position. The position itself is left unchanged.
+	 * 
+	 * @param buf buffer being decoded
+	 * @param d1 first delimiter
+	 * @param d2 second delimiter
+	 * @return absolute index of the delimiter
+	 * @throws SpRTException if neither delimiter is found before the limit
+	 */
+	protected static int indexOf(ByteBuffer buf, char d1, char d2) throws SpRTException{
+		for(int i = buf.position(); i < buf.limit(); i++){
+			byte b = buf.get(i);
+			if(b == d1 || b == d2){
+				return i;
+			}
+		}
+		throw new SpRTException("Incomplete SpRT Message");
+	}
+	
+	/**
+	 * Compares the bytes between from and to against the given ASCII token
+	 * without building a String.
+	 * 
+	 * @param buf buffer being decoded
+	 * @param from absolute start index
+	 * @param to absolute end index (exclusive)
+	 * @param token token to compare against
+	 * @return true if the region holds exactly the token
+	 */
+	protected static boolean regionMatches(ByteBuffer buf, int from, int to, String token){
+		if(to - from != token.length()){
+			return false;
+		}
+		for(int i = 0; i < token.length(); i++){
+			if(buf.get(from + i) != token.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Builds a String from the ASCII bytes between from and to.
+	 * 
+	 * @param buf buffer being decoded
+	 * @param from absolute start index
+	 * @param to absolute end index (exclusive)
+	 * @return the decoded token
+	 */
+	protected static String asciiString(ByteBuffer buf, int from, int to){
+		if(buf.hasArray()){
+			return new String(buf.array(), buf.arrayOffset() + from, to - from, ASCII);
+		}
+		byte[] bytes = new byte[to - from];
+		for(int i = 0; i < bytes.length; i++){
+			bytes[i] = buf.get(from + i);
+		}
+		return new String(bytes, ASCII);
+	}
+	
 }
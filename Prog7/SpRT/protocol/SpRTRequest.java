@@ -18,6 +18,7 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array; //getLength
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Scanner;
 
@@ -248,6 +249,55 @@ public class SpRTRequest extends SpRTMessage{
 			
 	}
 	
+	/**
+	 * Decodes a request directly out of the given buffer, starting at its
+	 * position. On success the position is left just past the end of the
+	 * request, so that any bytes following it remain to be decoded.
+	 * Only the function, parameters, and cookies are materialized as Strings;
+	 * the signature and command are checked in place.
+	 * 
+	 * @param buf buffer holding an encoded request
+	 * @return decoded request
+	 * @throws SpRTException in event of invalid or incomplete request
+	 */
+	public static SpRTRequest decode(ByteBuffer buf) throws SpRTException{
+		if(buf == null){
+			throw new NullPointerException("Null buffer");
+		}
+		expectToken(buf, MAGICTOKEN, "Syntax Violation: Expected SpRT signature");
+		
+		//Command - RUN is the only one we accept, so we never build a String for it.
+		int end = indexOf(buf, ' ', ' ');
+		if(!regionMatches(buf, buf.position(), end, COMMANDRUN)){
+			throw new SpRTException("Attempted to set invalid Command");
+		}
+		buf.position(end + 1);
+		
+		//Next, the function
+		end = indexOf(buf, ' ', '\r');
+		String function = asciiString(buf, buf.position(), end);
+		buf.position(end);
+		
+		//Next, any parameters - each is preceded by a space.
+		String[] params = new String[0];
+		if(buf.get() == ' '){
+			ArrayList<String> newParams = new ArrayList<>();
+			byte delim;
+			do{
+				end = indexOf(buf, ' ', '\r');
+				newParams.add(asciiString(buf, buf.position(), end));
+				buf.position(end);
+				delim = buf.get();
+			}while(delim == ' ');
+			params = newParams.toArray(new String[newParams.size()]);
+		}
+		expectByte(buf, '\n');
+		
+		//Finally, the cookie list (possibly empty)
+		CookieList cookies = CookieList.decode(buf);
+		return new SpRTRequest(COMMANDRUN, function, params, cookies);
+	}
+	
 	/**
 	 * Not to be implemented yet
 	 * 
@@ -268,17 +318,19 @@ public class SpRTRequest extends SpRTMessage{
 	 */
 	public String toString(){
 		//String representation of our request
-		String s = "Command: " + command + '\n' + "Function: " + function + '\n';
-		s += "Parameters: ";
+		StringBuilder s = new StringBuilder();
+		s.append("Command: ").append(command).append('\n')
+		 .append("Function: ").append(function).append('\n')
+		 .append("Parameters: ");
 		
-		for(int i = 0; i < Array.getLength(params); i++){
-			s += params[i] + " ";
+		for(int i = 0; i < params.length; i++){
+			s.append(params[i]).append(' ');
 		}
 		
-		s += "" + '\n';
-		s += "Cookies: ";
-		s += cookies.toString();
-		return s;
+		s.append('\n');
+		s.append("Cookies: ");
+		s.append(cookies.toString());
+		return s.toString();
 	}
 	
 	/**
@@ -370,4 +422,57 @@ public class SpRTRequest extends SpRTMessage{
 		 }
 	}
 	
+	/**
+	 * Encodes this SpRT Message as ASCII bytes written directly into
+	 * the given buffer
+	 * @see SpRT.protocol.SpRTMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void encodeTo(ByteBuffer buf) throws SpRTException,
+			NullPointerException {
+		//Verify that buf is not null
+		if(buf == null){
+			throw new NullPointerException("Null buffer");
+		}
+		//validate function
+		if(this.function.isEmpty()){
+			throw new SpRTException("Attempted to Encode Empty Function");
+		}
+		for(int i = 0; i < function.length(); i++){
+			if(!Character.isLetterOrDigit(function.charAt(i))){
+				throw new SpRTException("Attempted to Encode Invalid Function");
+			}
+		}
+		//Make sure the whole request fits before writing any of it
+		if(encodedLength() > buf.remaining()){
+			throw new SpRTException("Insufficient buffer space to encode request");
+		}
+		putAscii(buf, MAGICTOKEN);
+		putAscii(buf, command);
+		buf.put((byte) ' ');
+		putAscii(buf, function);
+		for(int i = 0; i < params.length; i++){
+			buf.put((byte) ' ');
+			putAscii(buf, params[i]);
+		}
+		buf.put((byte) '\r');
+		buf.put((byte) '\n');
+		cookies.encodeTo(buf);
+	}
+	
+	/**
+	 * @see SpRT.protocol.SpRTMessage#encodedLength()
+	 */
+	@Override
+	public int encodedLength() {
+		//signature, command, space, function, CRLF, cookies
+		int len = MAGICTOKEN.length() + command.length() + 1 + function.length() 
+				+ 2 + cookies.encodedLength();
+		//each parameter is preceded by a space
+		for(int i = 0; i < params.length; i++){
+			len += 1 + params[i].length();
+		}
+		return len;
+	}
+	
 }
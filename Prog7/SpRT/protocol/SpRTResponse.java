@@ -18,6 +18,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
 
 /**
@@ -225,6 +226,53 @@ public class SpRTResponse extends SpRTMessage{
 	}
 	
 	
+	/**
+	 * Decodes a response directly out of the given buffer, starting at its
+	 * position. On success the position is left just past the end of the
+	 * response.
+	 * 
+	 * @param buf buffer holding an encoded response
+	 * @return decoded response
+	 * @throws SpRTException in event of invalid or incomplete response
+	 */
+	public static SpRTResponse decode(ByteBuffer buf) throws SpRTException{
+		if(buf == null){
+			throw new NullPointerException("Null buffer");
+		}
+		expectToken(buf, MAGICTOKEN, "Syntax Violation: Expected SpRT signature");
+		
+		//Status - there are only two valid values, so we reuse our constants.
+		int end = indexOf(buf, ' ', '\r');
+		String status;
+		if(regionMatches(buf, buf.position(), end, STATUSOK)){
+			status = STATUSOK;
+		}
+		else if(regionMatches(buf, buf.position(), end, STATUSERROR)){
+			status = STATUSERROR;
+		}
+		else{
+			throw new SpRTException("Invalid Status");
+		}
+		buf.position(end);
+		expectByte(buf, ' ');
+		
+		//Next, the function
+		end = indexOf(buf, ' ', '\r');
+		String function = asciiString(buf, buf.position(), end);
+		buf.position(end);
+		expectByte(buf, ' ');
+		
+		//Next, the message, which runs to the CRLF
+		end = indexOf(buf, '\r', '\r');
+		String message = asciiString(buf, buf.position(), end);
+		buf.position(end + 1);
+		expectByte(buf, '\n');
+		
+		//Finally, the cookie list (possibly empty)
+		CookieList cookies = CookieList.decode(buf);
+		return new SpRTResponse(status, function, message, cookies);
+	}
+	
 	/**
 	 * Constructs SpRT Response based on user input
 	 * NOT TO BE IMPLEMENTED YET
@@ -243,11 +291,13 @@ public class SpRTResponse extends SpRTMessage{
 	 * @see SpRT.protocol.SpRTMessage#toString()
 	 */
 	public String toString(){
-		String str = "Status: " + status + '\n' + "Function: " + function +
-				      '\n' + "Message: " + message + '\n' + "Cookies: ";
-		str += cookies.toString();
-		str += "" + '\r' + '\n';
-		return str;
+		StringBuilder str = new StringBuilder();
+		str.append("Status: ").append(status).append('\n')
+		   .append("Function: ").append(function).append('\n')
+		   .append("Message: ").append(message).append('\n')
+		   .append("Cookies: ").append(cookies.toString())
+		   .append('\r').append('\n');
+		return str.toString();
 	}
 	
 	/**
@@ -358,4 +408,49 @@ public class SpRTResponse extends SpRTMessage{
 		 }
 	}
 	
+	/**
+	 * Encodes this SpRT Message as ASCII bytes written directly into
+	 * the given buffer
+	 * @see SpRT.protocol.SpRTMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void encodeTo(ByteBuffer buf) throws SpRTException, NullPointerException {
+		//Verify that buf is not null
+		if(buf == null){
+			throw new NullPointerException("Null buffer");
+		}
+		//Validate Function
+		if(this.function.isEmpty()){
+			throw new SpRTException("Attempted to Encode Empty Function");
+		}
+		for(int i = 0; i < this.function.length(); i++){
+			if(!Character.isLetterOrDigit(this.function.charAt(i))){
+				throw new SpRTException("Attempted to Encode Invalid Function");
+			}
+		}
+		//Make sure the whole response fits before writing any of it
+		if(encodedLength() > buf.remaining()){
+			throw new SpRTException("Insufficient buffer space to encode response");
+		}
+		putAscii(buf, MAGICTOKEN);
+		putAscii(buf, status);
+		buf.put((byte) ' ');
+		putAscii(buf, function);
+		buf.put((byte) ' ');
+		putAscii(buf, message);
+		buf.put((byte) '\r');
+		buf.put((byte) '\n');
+		cookies.encodeTo(buf);
+	}
+	
+	/**
+	 * @see SpRT.protocol.SpRTMessage#encodedLength()
+	 */
+	@Override
+	public int encodedLength() {
+		//signature, status, space, function, space, message, CRLF, cookies
+		return MAGICTOKEN.length() + status.length() + 1 + function.length() + 1 
+				+ message.length() + 2 + cookies.encodedLength();
+	}
+	
 }
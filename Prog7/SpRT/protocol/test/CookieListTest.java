@@ -1,11 +1,17 @@
 package SpRT.protocol.test;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -43,9 +49,49 @@ public class CookieListTest {
 		CookieList cookies = new CookieList();
 		cookies.add("FName","Tom");
 		cookies.add("LName","AlsoTom");
-		int expected = 32;
-		int actual = cookies.hashCode();
-		assertEquals(expected,actual);
+		CookieList reordered = new CookieList();
+		reordered.add("LName","AlsoTom");
+		reordered.add("FName","Tom");
+		assertEquals(cookies.hashCode(),reordered.hashCode());
+		assertEquals(cookies,reordered);
+		CookieList other = new CookieList();
+		other.add("FName","Tim");
+		other.add("LName","AlsoTom");
+		assertNotEquals(cookies.hashCode(),other.hashCode());
+		assertFalse(cookies.equals(other));
+	}
+
+	/**
+	 * Test method for {@link CookieList#hashCode()}
+	 * after a value is replaced.
+	 * @throws SpRTException 
+	 */
+	@Test
+	public void testHashCodeAfterReplace() throws SpRTException {
+		CookieList cookies = new CookieList();
+		cookies.add("FName","Tim");
+		cookies.add("FName","Tom");
+		CookieList cookies2 = new CookieList();
+		cookies2.add("FName","Tom");
+		assertEquals(cookies2.hashCode(),cookies.hashCode());
+		assertEquals(cookies2,cookies);
+	}
+	
+	/**
+	 * Test method for {@link CookieList#CookieList(CookieList)}.
+	 * @throws SpRTException 
+	 */
+	@Test
+	public void testCopyIsIndependent() throws SpRTException {
+		CookieList cookies = new CookieList();
+		cookies.add("FName","Tom");
+		CookieList copy = new CookieList(cookies);
+		assertEquals(cookies,copy);
+		copy.add("LName","Smith");
+		copy.add("FName","Tim");
+		assertEquals("Tom",cookies.getValue("FName"));
+		assertNull(cookies.getValue("LName"));
+		assertEquals("Cookies=[FName=Tim LName=Smith]",copy.toString());
 	}
 	
 	/**
@@ -113,6 +159,31 @@ public class CookieListTest {
 		CookieList cookieList = new CookieList(in);
 	}
 
+	/**
+	 * Test method for {@link CookieList#decode(ByteBuffer)}.
+	 * @throws SpRTException 
+	 * @throws IOException 
+	 */
+	@Test
+	public void testDecodeByteBuffer() throws SpRTException, IOException {
+		String cookies = "FName=Tom" + '\r' + '\n' + "LName=Smith" + '\r' + '\n' + '\r' + '\n';
+		ByteBuffer buf = ByteBuffer.wrap(cookies.getBytes("US-ASCII"));
+		CookieList actual = CookieList.decode(buf);
+		assertEquals("Cookies=[FName=Tom LName=Smith]",actual.toString());
+		assertFalse(buf.hasRemaining());
+	}
+	
+	/**
+	 * Test method for {@link CookieList#decode(ByteBuffer)}.
+	 * @throws SpRTException 
+	 * @throws IOException 
+	 */
+	@Test(expected = SpRTException.class)
+	public void testDecodeByteBufferBadCharacter() throws SpRTException, IOException {
+		String cookies = "FName=T-m" + '\r' + '\n' + '\r' + '\n';
+		CookieList.decode(ByteBuffer.wrap(cookies.getBytes("US-ASCII")));
+	}
+
 	/**
 	 * Test method for {@link CookieList#CookieList(java.util.Scanner, java.io.PrintStream)}.
 	 * NOTE: Since we are not yet implementing this constructor, we are not
@@ -209,6 +280,44 @@ public class CookieListTest {
 			cookies.encode(out);
 	}
 
+	/**
+	 * Test method for {@link CookieList#encodeTo(ByteBuffer)}.
+	 * @throws SpRTException 
+	 * @throws IOException 
+	 */
+	@Test
+	public void testEncodeTo() throws SpRTException, IOException {
+		String expectedCookie = "a=1" + '\r' + '\n' + "B=2" + '\r' + '\n' + '\r' + '\n';
+		CookieList cookies = new CookieList();
+		cookies.add("B","2");
+		cookies.add("a","1");
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		cookies.encodeTo(buf);
+		assertEquals(expectedCookie.length(),cookies.encodedLength());
+		assertEquals(expectedCookie,new String(buf.array(),0,buf.position(),"US-ASCII"));
+	}
+
+	/**
+	 * Test method for {@link CookieList#encodeTo(ByteBuffer)}
+	 * after the list changes between encodings.
+	 * @throws SpRTException
+	 * @throws IOException
+	 */
+	@Test
+	public void testEncodeToAfterAdd() throws SpRTException, IOException {
+		CookieList cookies = new CookieList();
+		cookies.add("B","2");
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		cookies.encodeTo(buf);
+		cookies.add("B","3");
+		cookies.add("a","1");
+		buf.clear();
+		cookies.encodeTo(buf);
+		String expectedCookie = "a=1" + '\r' + '\n' + "B=3" + '\r' + '\n' + '\r' + '\n';
+		assertEquals(expectedCookie.length(),cookies.encodedLength());
+		assertEquals(expectedCookie,new String(buf.array(),0,buf.position(),"US-ASCII"));
+	}
+
 	/**
 	 * Test method for {@link CookieList#equals(Object)}.
 	 * @throws SpRTException 
@@ -275,6 +384,31 @@ public class CookieListTest {
 		assertEquals(expected,actual);
 	}
 
+	/**
+	 * Test method for {@link CookieList#add(String, String)}
+	 * with enough cookies to grow the list several times.
+	 * @throws SpRTException
+	 */
+	@Test
+	public void testAddManyKeepsOrder() throws SpRTException {
+		CookieList cookies = new CookieList();
+		for(int i = 99; i >= 0; i--){
+			cookies.add("n" + (char)('a' + i % 26) + i, "v" + i);
+		}
+		cookies.add("na0", "replaced");
+		assertEquals(100, cookies.getNames().size());
+		for(int i = 1; i < 100; i++){
+			assertEquals("v" + i, cookies.getValue("n" + (char)('a' + i % 26) + i));
+		}
+		assertEquals("replaced", cookies.getValue("na0"));
+		assertNull(cookies.getValue("missing"));
+		String previous = "";
+		for(String name : cookies.getNames()){
+			assertTrue(String.CASE_INSENSITIVE_ORDER.compare(previous, name) < 0);
+			previous = name;
+		}
+	}
+
 	/**
 	 * Test method for {@link CookieList#getNames()}.
 	 * @throws SpRTException 
@@ -340,4 +474,50 @@ public class CookieListTest {
 		assertEquals(expected,actual);
 	}
 
+	/**
+	 * Test that a CookieList serialized by earlier versions, which held
+	 * a map of cookies, reads back whole.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testReadOldSerialized() throws Exception {
+		//CookieList [FName=Bob LName=Smith] as serialized by earlier versions
+		String old = "rO0ABXNyABhTcFJULnByb3RvY29sLkNvb2tpZUxpc3Tb2YEf/PXC5wIAAUwAB2Nvb2tpZXN0AA9M"
+				+ "amF2YS91dGlsL01hcDt4cHNyABFqYXZhLnV0aWwuSGFzaE1hcAUH2sHDFmDRAwACRgAKbG9hZEZh"
+				+ "Y3RvckkACXRocmVzaG9sZHhwP0AAAAAAAAx3CAAAABAAAAACdAAFTE5hbWV0AAVTbWl0aHQABUZO"
+				+ "YW1ldAADQm9ieA==";
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(old)));
+		CookieList cookies = (CookieList) in.readObject();
+		CookieList expected = new CookieList();
+		expected.add("FName","Bob");
+		expected.add("LName","Smith");
+		assertEquals("Bob",cookies.getValue("FName"));
+		assertEquals("Smith",cookies.getValue("LName"));
+		assertEquals(expected,cookies);
+		assertEquals(expected.hashCode(),cookies.hashCode());
+		cookies.add("Repeat","1");
+		assertEquals("1",cookies.getValue("Repeat"));
+	}
+	
+	/**
+	 * Test that a serialized CookieList reads back equal to the original.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testSerializeRoundTrip() throws Exception {
+		CookieList cookies = new CookieList();
+		for(int i = 0; i < 10; i++){
+			cookies.add("Name" + i,"Value" + i);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(cookies);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		CookieList copy = (CookieList) in.readObject();
+		assertEquals(cookies,copy);
+		assertEquals(cookies.hashCode(),copy.hashCode());
+		assertEquals(cookies.toString(),copy.toString());
+	}
+
 }
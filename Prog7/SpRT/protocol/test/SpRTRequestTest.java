@@ -6,6 +6,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -192,4 +193,92 @@ public class SpRTRequestTest {
 		req.encode(null);
 	}
 	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test
+	public void testDecodeByteBuffer() throws SpRTException, UnsupportedEncodingException{
+		String request = "SpRT/1.0 RUN F P1 P2" + '\r' + '\n'
+		           + "n=v" + '\r' + '\n' + '\r' + '\n' + "SpRT";
+		ByteBuffer buf = ByteBuffer.wrap(request.getBytes("US-ASCII"));
+		SpRTRequest req = SpRTRequest.decode(buf);
+		assertEquals("RUN",req.getCommand());
+		assertEquals("F",req.getFunction());
+		assertEquals(2,req.getParams().length);
+		assertEquals("P2",req.getParams()[1]);
+		assertEquals("v",req.getCookieList().getValue("n"));
+		//Bytes following the request are left in the buffer
+		assertEquals(4,buf.remaining());
+	}
+	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test
+	public void testDecodeByteBufferNoParamsNoCookies() throws SpRTException, UnsupportedEncodingException{
+		String request = "SpRT/1.0 RUN Poll" + '\r' + '\n' + '\r' + '\n';
+		ByteBuffer buf = ByteBuffer.wrap(request.getBytes("US-ASCII"));
+		SpRTRequest req = SpRTRequest.decode(buf);
+		assertEquals("Poll",req.getFunction());
+		assertEquals(0,req.getParams().length);
+		assertTrue(req.getCookieList().isEmpty());
+		assertFalse(buf.hasRemaining());
+	}
+	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test(expected = SpRTException.class)
+	public void testDecodeByteBufferBadCommand() throws SpRTException, UnsupportedEncodingException{
+		String request = "SpRT/1.0 DONTRUN F P1 P2" + '\r' + '\n'
+                + "n=v" + '\r' + '\n' + '\r' + '\n';
+		SpRTRequest.decode(ByteBuffer.wrap(request.getBytes("US-ASCII")));
+	}
+	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test(expected = SpRTException.class)
+	public void testDecodeByteBufferIncomplete() throws SpRTException, UnsupportedEncodingException{
+		String request = "SpRT/1.0 RUN F P1 P2" + '\r' + '\n' + "n=v" + '\r';
+		SpRTRequest.decode(ByteBuffer.wrap(request.getBytes("US-ASCII")));
+	}
+	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test
+	public void testEncodeTo() throws SpRTException, UnsupportedEncodingException{
+		String expected = "SpRT/1.0 RUN F P1 P2" + '\r' + '\n' +
+				           "n=v" + '\r' + '\n' + '\r' + '\n';
+		CookieList cookies = new CookieList();
+		cookies.add("n","v");
+		String[] params = {"P1","P2"};
+		SpRTRequest req = new SpRTRequest("RUN","F",params, cookies);
+		ByteBuffer buf = ByteBuffer.allocate(100);
+		req.encodeTo(buf);
+		assertEquals(expected.length(),req.encodedLength());
+		assertEquals(expected,new String(buf.array(),0,buf.position(),"US-ASCII"));
+	}
+	
+	/**
+	 * Non-ASCII letters pass validation but must go out as '?', as getBytes would write them
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test
+	public void testEncodeToNonAscii() throws SpRTException, UnsupportedEncodingException{
+		String expected = "SpRT/1.0 RUN F? P? ?" + '\r' + '\n' + '\r' + '\n';
+		String[] params = {"P\u00e9","\u0100"};
+		SpRTRequest req = new SpRTRequest("RUN","F\u00e9",params, new CookieList());
+		ByteBuffer buf = ByteBuffer.allocate(100);
+		req.encodeTo(buf);
+		assertEquals(expected.length(),req.encodedLength());
+		assertEquals(expected,new String(buf.array(),0,buf.position(),"US-ASCII"));
+	}
 }
@@ -6,6 +6,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -215,4 +216,58 @@ public class SpRTResponseTest {
 		SpRTResponse resp = new SpRTResponse("OK","F","MSG",cookies);
 		resp.encode(null);
 	}
+	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test
+	public void testDecodeByteBuffer() throws SpRTException, UnsupportedEncodingException{
+		String response = "SpRT/1.0 OK F Your MSG" + '\r' + '\n'
+		           + "n=v" + '\r' + '\n' + '\r' + '\n';
+		ByteBuffer buf = ByteBuffer.wrap(response.getBytes("US-ASCII"));
+		SpRTResponse resp = SpRTResponse.decode(buf);
+		assertEquals("OK",resp.getStatus());
+		assertEquals("F",resp.getFunction());
+		assertEquals("Your MSG",resp.getMessage());
+		assertEquals("v",resp.getCookieList().getValue("n"));
+		assertFalse(buf.hasRemaining());
+	}
+	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test(expected = SpRTException.class)
+	public void testDecodeByteBufferBadStatus() throws SpRTException, UnsupportedEncodingException{
+		String response = "SpRT/1.0 Hi F MSG" + '\r' + '\n'
+		           + "n=v" + '\r' + '\n' + '\r' + '\n';
+		SpRTResponse.decode(ByteBuffer.wrap(response.getBytes("US-ASCII")));
+	}
+	
+	/**
+	 * @throws SpRTException 
+	 * @throws UnsupportedEncodingException 
+	 */
+	@Test
+	public void testEncodeTo() throws SpRTException, UnsupportedEncodingException{
+		String expected = "SpRT/1.0 OK F MSG" + '\r' + '\n' +
+				           "n=v" + '\r' + '\n' + '\r' + '\n';
+		CookieList cookies = new CookieList();
+		cookies.add("n","v");
+		SpRTResponse resp = new SpRTResponse("OK","F","MSG",cookies);
+		ByteBuffer buf = ByteBuffer.allocate(100);
+		resp.encodeTo(buf);
+		assertEquals(expected.length(),resp.encodedLength());
+		assertEquals(expected,new String(buf.array(),0,buf.position(),"US-ASCII"));
+	}
+	
+	/**
+	 * @throws SpRTException 
+	 */
+	@Test(expected = SpRTException.class)
+	public void testEncodeToFullBuffer() throws SpRTException{
+		SpRTResponse resp = new SpRTResponse("OK","F","MSG",new CookieList());
+		resp.encodeTo(ByteBuffer.allocate(10));
+	}
 }